@@ -0,0 +1,333 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Batch extraction of tests, each to its own subdirectory of output dir.
+ * Steps (scan, resolve, convert, copy, render) run in separate threads
+ * connected by bounded queues, so that e.g. copying of one test overlaps
+ * with resolving (javac) of the next one. Full queue blocks preceding step
+ * (backpressure), so only few tests are in flight at any time. With worker
+ * JVMs (--workers), resolve step runs in one thread per worker. Failure of
+ * single test (e.g. crash or timeout of its worker) only drops that test,
+ * failed tests are returned by run.
+ *
+ * @author zzambers
+ */
+public class BatchPipeline {
+
+    private final PathTable paths;
+    private final DependencyCache cache;
+    private final TestExtractor.Options options;
+    private final Path jckTestsDir;
+    private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    /* names of failed tests with reasons */
+    private final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Stage> stages = new ArrayList<Stage>();
+    /* sessions are closed after all stages finish, as converting of links
+       needs fixed trees of session */
+    private final List<ResolveSession> sessions = new ArrayList<ResolveSession>();
+
+    /* test passing through pipeline */
+    static class Item {
+
+        final Path testSrcDir;
+        TestExtractor.TestInfo test;
+        /* temporary dir with fixed tree of test, until links are converted */
+        Path tmpDir;
+        /* dir containing links of session, which resolved test */
+        Path linksDir;
+        Path outputDir;
+
+        Item(Path testSrcDir) {
+            this.testSrcDir = testSrcDir;
+        }
+    }
+
+    /* marks end of input */
+    private static final Item END = new Item(null);
+
+    public BatchPipeline(PathTable paths, DependencyCache cache, TestExtractor.Options options) {
+        this.paths = paths;
+        this.cache = cache;
+        this.options = options;
+        this.jckTestsDir = options.jckDir.resolve("tests");
+    }
+
+    private String getTestName(Path testSrcDir) {
+        return ReverseIndex.toIndexPath(jckTestsDir, testSrcDir);
+    }
+
+    /* step of pipeline, processes items from in queue and passes them to out
+       queue, item failing with exception is dropped, after other failure
+       (error) remaining items are just discarded, step may run in several
+       threads (stages sharing queues and running count) */
+    abstract class Stage extends Thread {
+
+        final BlockingQueue<Item> in;
+        final BlockingQueue<Item> out;
+        final AtomicInteger running;
+        int items;
+        long busyNanos;
+        /* waiting for items from previous step */
+        long waitingNanos;
+        /* waiting for space in queue of next step */
+        long blockedNanos;
+
+        Stage(String name, BlockingQueue<Item> in, BlockingQueue<Item> out) {
+            this(name, in, out, new AtomicInteger(1));
+        }
+
+        Stage(String name, BlockingQueue<Item> in, BlockingQueue<Item> out, AtomicInteger running) {
+            super("jck-extractor-" + name);
+            this.in = in;
+            this.out = out;
+            this.running = running;
+        }
+
+        abstract void process(Item item) throws Exception;
+
+        /* called for items not processed because of failure */
+        void discard(Item item) throws Exception {
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    long start = System.nanoTime();
+                    Item item = in.take();
+                    long taken = System.nanoTime();
+                    waitingNanos += taken - start;
+                    if (item == END) {
+                        break;
+                    }
+                    boolean processed = false;
+                    try {
+                        if (error.get() == null) {
+                            process(item);
+                            processed = true;
+                        } else {
+                            discard(item);
+                        }
+                    } catch (Exception e) {
+                        fail(item, e);
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                    long done = System.nanoTime();
+                    busyNanos += done - taken;
+                    if (processed) {
+                        ++items;
+                        if (out != null) {
+                            out.put(item);
+                            blockedNanos += System.nanoTime() - done;
+                        }
+                    }
+                }
+                if (running.decrementAndGet() > 0) {
+                    /* let other threads of this step finish */
+                    in.put(END);
+                } else if (out != null) {
+                    out.put(END);
+                }
+            } catch (InterruptedException e) {
+                error.compareAndSet(null, e);
+            }
+        }
+
+        void fail(Item item, Exception e) {
+            String reason = String.valueOf(e);
+            if (e.getCause() != null) {
+                reason += " (" + e.getCause() + ")";
+            }
+            failed.add(getTestName(item.testSrcDir) + ": " + reason.replace('\n', ' '));
+            try {
+                discard(item);
+            } catch (Throwable t) {
+                error.compareAndSet(null, t);
+            }
+        }
+
+        String getStats() {
+            long busyMillis = busyNanos / 1000000;
+            String throughput = busyNanos > 0 ? String.format(Locale.ROOT, "%.1f", items * 1e9 / busyNanos) : "-";
+            return "batch " + getName().substring("jck-extractor-".length()) + ": " + items + " test(s), busy "
+                    + busyMillis + " ms, waiting " + (waitingNanos / 1000000) + " ms, blocked "
+                    + (blockedNanos / 1000000) + " ms, " + throughput + " tests/s";
+        }
+    }
+
+    /* returns failed tests (with reasons) */
+    public List<String> run() throws Exception {
+        if (options.workers > 0) {
+            try (WorkerPool workerPool = new WorkerPool(options, paths)) {
+                run(workerPool);
+            }
+        } else {
+            run(null);
+        }
+        return new ArrayList<String>(failed);
+    }
+
+    private void run(final WorkerPool pool) throws Exception {
+        BlockingQueue<Item> input = new LinkedBlockingQueue<Item>();
+        /* largest tests first, so that they do not finish last */
+        List<Path> testSrcDirs = options.history != null ? options.history.schedule(options.testSrcDirs, options.ioExecutor) : options.testSrcDirs;
+        for (Path testSrcDir : testSrcDirs) {
+            input.add(new Item(testSrcDir));
+        }
+        input.add(END);
+        BlockingQueue<Item> scanned = new ArrayBlockingQueue<Item>(options.queueSize);
+        BlockingQueue<Item> resolved = new ArrayBlockingQueue<Item>(options.queueSize);
+        BlockingQueue<Item> converted = new ArrayBlockingQueue<Item>(options.queueSize);
+        BlockingQueue<Item> copied = new ArrayBlockingQueue<Item>(options.queueSize);
+
+        stages.add(new Stage("scan", input, scanned) {
+            @Override
+            void process(Item item) throws Exception {
+                item.test = TestExtractor.scanTest(item.testSrcDir, paths, cache, options);
+                if (!item.test.cached) {
+                    TestExtractor.addAdditionalFiles(item.test, paths, options);
+                }
+                item.outputDir = options.outputDir.resolve(jckTestsDir.relativize(item.testSrcDir));
+            }
+        });
+        if (pool != null) {
+            AtomicInteger running = new AtomicInteger(options.workers);
+            for (int i = 1; i <= options.workers; ++i) {
+                stages.add(new Stage("resolve-" + i, scanned, resolved, running) {
+                    @Override
+                    void process(Item item) throws Exception {
+                        if (!item.test.cached) {
+                            pool.resolve(item.test);
+                        }
+                    }
+                });
+            }
+        } else {
+            stages.add(new Stage("resolve", scanned, resolved) {
+                /* javac session is reused for all tests of this thread */
+                ResolveSession session;
+
+                @Override
+                void process(Item item) throws Exception {
+                    if (item.test.cached) {
+                        return;
+                    }
+                    if (session == null) {
+                        session = new ResolveSession(paths, options);
+                        synchronized (sessions) {
+                            sessions.add(session);
+                        }
+                    }
+                    item.tmpDir = session.resolve(item.test);
+                    item.linksDir = session.getLinksDir();
+                }
+            });
+        }
+        stages.add(new Stage("convert", resolved, converted) {
+            @Override
+            void process(Item item) throws Exception {
+                if (item.tmpDir != null) {
+                    try {
+                        TestExtractor.convertSymbolicLinks(Collections.singletonList(item.test), paths, options, item.linksDir);
+                    } finally {
+                        discard(item);
+                    }
+                }
+                if (cache != null && !item.test.cached) {
+                    cache.put(item.test.cacheKey, item.test);
+                }
+                if (options.history != null) {
+                    options.history.record(item.test, paths);
+                }
+            }
+
+            @Override
+            void discard(Item item) throws Exception {
+                if (item.tmpDir != null) {
+                    FileUtil.recursiveDelete(item.tmpDir);
+                    item.tmpDir = null;
+                }
+            }
+        });
+        stages.add(new Stage("copy", converted, copied) {
+            @Override
+            void process(Item item) throws Exception {
+                Files.createDirectories(item.outputDir);
+                TestExtractor.copyDependencies(Collections.singletonList(item.test), paths, options, item.outputDir);
+            }
+        });
+        stages.add(new Stage("render", copied, null) {
+            @Override
+            void process(Item item) throws Exception {
+                TestExtractor.renderScripts(Collections.singletonList(item.test), paths, options, item.outputDir, getTestName(item.testSrcDir));
+            }
+        });
+
+        for (Stage stage : stages) {
+            stage.start();
+        }
+        try {
+            for (Stage stage : stages) {
+                stage.join();
+            }
+        } finally {
+            for (ResolveSession session : sessions) {
+                session.close();
+            }
+        }
+        if (cache != null) {
+            cache.evict();
+        }
+        if (options.stats) {
+            for (Stage stage : stages) {
+                System.err.println(stage.getStats());
+            }
+        }
+        Throwable t = error.get();
+        if (t instanceof Exception) {
+            throw (Exception) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        if (t != null) {
+            throw new Exception(t);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Copies many files to output directory: distinct destination directories
+ * are created once (before copying), files are copied in parallel in
+ * batches of files from the same source directory (for locality of
+ * directory lookups), large files are transferred by FileChannel.transferTo
+ * (sendfile / copy_file_range on linux, no copying through java heap).
+ * Attributes are copied as with StandardCopyOption.COPY_ATTRIBUTES.
+ *
+ * @author zzambers
+ */
+public class CopyEngine {
+
+    /* files at least this large are copied by transferTo */
+    static final long TRANSFER_THRESHOLD = 256 * 1024;
+    /* max number of files copied by one task */
+    static final int BATCH_SIZE = 64;
+
+    /* copies files (source -> destination), destination must not exist,
+       batches are copied by at most parallelism tasks of executor */
+    public static void copyFiles(Map<Path, Path> files, Executor executor, int parallelism) throws IOException {
+        SortedMap<Path, Path> sorted = new TreeMap<Path, Path>(files);
+        SortedSet<Path> dirs = new TreeSet<Path>();
+        for (Path dest : sorted.values()) {
+            Path dir = dest.getParent();
+            if (dir != null) {
+                dirs.add(dir);
+            }
+        }
+        for (Path dir : dirs) {
+            Files.createDirectories(dir);
+        }
+
+        final Queue<List<Map.Entry<Path, Path>>> batches = new ConcurrentLinkedQueue<List<Map.Entry<Path, Path>>>();
+        List<Map.Entry<Path, Path>> batch = new ArrayList<Map.Entry<Path, Path>>();
+        Path batchDir = null;
+        for (Map.Entry<Path, Path> e : sorted.entrySet()) {
+            Path srcDir = e.getKey().getParent();
+            if (batch.size() >= BATCH_SIZE || (batchDir != null && !batchDir.equals(srcDir))) {
+                batches.add(batch);
+                batch = new ArrayList<Map.Entry<Path, Path>>();
+            }
+            batch.add(e);
+            batchDir = srcDir;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = Math.min(parallelism, batches.size()); i > 0; --i) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    List<Map.Entry<Path, Path>> batch;
+                    while ((batch = batches.poll()) != null) {
+                        for (Map.Entry<Path, Path> e : batch) {
+                            copyFile(e.getKey(), e.getValue());
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        FileUtil.runAll(tasks, executor);
+    }
+
+    public static void copyFile(Path src, Path dest) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(src, BasicFileAttributes.class);
+        if (!attrs.isRegularFile() || attrs.size() < TRANSFER_THRESHOLD) {
+            Files.copy(src, dest, StandardCopyOption.COPY_ATTRIBUTES);
+            return;
+        }
+        long size;
+        long position = 0;
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(dest, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            size = in.size();
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    /* end of file, source was truncated meanwhile */
+                    break;
+                }
+                position += transferred;
+            }
+        }
+        if (position != size) {
+            /* copy current content instead */
+            Files.delete(dest);
+            Files.copy(src, dest, StandardCopyOption.COPY_ATTRIBUTES);
+            return;
+        }
+        copyAttributes(src, attrs, dest);
+    }
+
+    /* same attributes as Files.copy with COPY_ATTRIBUTES copies
+       (permissions where supported and timestamps) */
+    private static void copyAttributes(Path src, BasicFileAttributes attrs, Path dest) throws IOException {
+        PosixFileAttributeView srcPosixView = Files.getFileAttributeView(src, PosixFileAttributeView.class);
+        PosixFileAttributeView destPosixView = Files.getFileAttributeView(dest, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        if (srcPosixView != null && destPosixView != null) {
+            PosixFileAttributes posixAttrs = srcPosixView.readAttributes();
+            destPosixView.setPermissions(posixAttrs.permissions());
+        }
+        BasicFileAttributeView destView = Files.getFileAttributeView(dest, BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        destView.setTimes(attrs.lastModifiedTime(), attrs.lastAccessTime(), attrs.creationTime());
+    }
+}
@@ -23,13 +23,27 @@
  */
 package jckextractor;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import javax.tools.FileObject;
 import javax.tools.ForwardingJavaFileManager;
 import javax.tools.ForwardingJavaFileObject;
@@ -44,48 +58,239 @@ import javax.tools.ToolProvider;
  *
  * @author zzambers
  */
-public class DependenciesGetter {
+public class DependenciesGetter implements Closeable {
 
-    public static void getDependencies(Set<String> deps, Iterable<File> sources, Iterable<File> srcPath) throws Exception {
-        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    final PathTable paths;
+    final SourceCache sourceCache;
+    final JavaCompiler compiler;
+    final StandardJavaFileManager fileManager;
+    final MonitoringFileManager manager;
+    final File classOutputDir;
+    final List<File> srcPath;
 
-        File tmp = File.createTempFile("clses", null);
-        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null)) {
-            tmp.delete();
-            tmp.mkdir();
+    /* creates session sharing single file manager (and its caches) by all
+       subsequent getDependencies calls, srcPath is indexed using executor */
+    public DependenciesGetter(Iterable<File> srcPath, PathTable paths, Executor executor) throws IOException {
+        this(srcPath, paths, SourceCache.getShared(), executor);
+    }
+
+    public DependenciesGetter(Iterable<File> srcPath, PathTable paths, SourceCache sourceCache, Executor executor) throws IOException {
+        this(srcPath, paths, sourceCache, new PackageIndex(toList(srcPath), executor));
+    }
 
+    /* packageIndex (of srcPath) narrows source path lookups to roots
+       containing the package, may be null */
+    public DependenciesGetter(Iterable<File> srcPath, PathTable paths, SourceCache sourceCache, PackageIndex packageIndex) throws IOException {
+        this.paths = paths;
+        this.sourceCache = sourceCache;
+        this.srcPath = toList(srcPath);
+        compiler = ToolProvider.getSystemJavaCompiler();
+        fileManager = compiler.getStandardFileManager(null, null, null);
+        manager = new MonitoringFileManager(fileManager, paths, sourceCache, packageIndex);
+        classOutputDir = Files.createTempDirectory("clses").toFile();
+        try {
             ArrayList<File> classOutput = new ArrayList<File>();
-            classOutput.add(tmp);
+            classOutput.add(classOutputDir);
 
             fileManager.setLocation(StandardLocation.SOURCE_PATH, srcPath);
             fileManager.setLocation(StandardLocation.CLASS_OUTPUT, classOutput);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
 
-            Iterable<? extends JavaFileObject> compilationUnits = fileManager.getJavaFileObjectsFromFiles(sources);
+    /* replaces root of source path, so that session (file manager and its
+       memoized listings of other roots) can be reused, e.g. for fixed tree
+       of another test, root must have different path than old one */
+    public void replaceRoot(File oldRoot, File newRoot, Executor executor) throws IOException {
+        srcPath.set(srcPath.indexOf(oldRoot), newRoot);
+        fileManager.setLocation(StandardLocation.SOURCE_PATH, srcPath);
+        if (manager.packageIndex == null) {
+            manager.listings.clear();
+            return;
+        }
+        packagesChanged(manager.packageIndex.replaceRoot(oldRoot, newRoot, executor));
+    }
 
-            Set<JavaFileObject> dependencies = new HashSet<JavaFileObject>();
-            try (JavaFileManager manager = new MonitoringFileManager(fileManager, dependencies)) {
-                compiler.getTask(null, manager, null, null, null, compilationUnits).call();
+    /* drops memoized listings of changed packages of source path (e.g.
+       updated from live index by --watch) */
+    public void packagesChanged(Set<String> changed) {
+        if (manager.packageIndex == null) {
+            manager.listings.clear();
+            return;
+        }
+        Iterator<ListingKey> it = manager.listings.keySet().iterator();
+        while (it.hasNext()) {
+            ListingKey key = it.next();
+            if (key.location.equals(StandardLocation.SOURCE_PATH) && (key.recurse || changed.contains(key.packageName))) {
+                it.remove();
             }
+        }
+    }
 
-            for (Object o : dependencies) {
-                deps.add(((JavaFileObject) o).getName());
-            }
+    /* adds ids of source files read by javac when compiling sources */
+    public void getDependencies(IntSet deps, Iterable<File> sources) throws IOException {
+        Iterable<? extends JavaFileObject> compilationUnits = fileManager.getJavaFileObjectsFromFiles(sources);
+
+        manager.monitor = deps;
+        try {
+            compiler.getTask(null, manager, null, null, null, compilationUnits).call();
         } finally {
-            FileUtil.recursiveDelete(tmp.toPath());
+            manager.monitor = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            manager.close();
+        } finally {
+            FileUtil.recursiveDelete(classOutputDir.toPath());
+        }
+    }
+
+    private static List<File> toList(Iterable<File> files) {
+        List<File> list = new ArrayList<File>();
+        for (File f : files) {
+            list.add(f);
+        }
+        return list;
+    }
+
+    public static void getDependencies(Set<String> deps, Iterable<File> sources, Iterable<File> srcPath, Executor executor) throws Exception {
+        PathTable paths = new PathTable(FileSystems.getDefault());
+        try (DependenciesGetter getter = new DependenciesGetter(srcPath, paths, executor)) {
+            IntSet ids = new IntSet();
+            getter.getDependencies(ids, sources);
+            for (int id : ids.toArray()) {
+                deps.add(paths.toString(id));
+            }
+        }
+    }
+
+    /* key of memoized package listing */
+    static class ListingKey {
+
+        final JavaFileManager.Location location;
+        final String packageName;
+        final Set<JavaFileObject.Kind> kinds;
+        final boolean recurse;
+
+        ListingKey(JavaFileManager.Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse) {
+            this.location = location;
+            this.packageName = packageName;
+            this.kinds = kinds.isEmpty() ? EnumSet.noneOf(JavaFileObject.Kind.class) : EnumSet.copyOf(kinds);
+            this.recurse = recurse;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ListingKey)) {
+                return false;
+            }
+            ListingKey k = (ListingKey) o;
+            return location.equals(k.location)
+                    && packageName.equals(k.packageName)
+                    && kinds.equals(k.kinds)
+                    && recurse == k.recurse;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((location.hashCode() * 31 + packageName.hashCode()) * 31 + kinds.hashCode()) * 2 + (recurse ? 1 : 0);
+        }
+    }
+
+    /* memoized package listing, files on source path are wrapped lazily,
+       when javac first iterates over them */
+    static class Listing implements Iterable<JavaFileObject> {
+
+        final MonitoringFileManager manager;
+        final JavaFileObject[] files;
+        final MonitoringJavaFileObject[] wrapped;
+        /* binary names of files listed using package index (or null) */
+        final String[] binaryNames;
+
+        Listing(MonitoringFileManager manager, JavaFileObject[] files, boolean wrap, String[] binaryNames) {
+            this.manager = manager;
+            this.files = files;
+            this.wrapped = wrap ? new MonitoringJavaFileObject[files.length] : null;
+            this.binaryNames = binaryNames;
+        }
+
+        JavaFileObject get(int i) {
+            if (wrapped == null) {
+                return files[i];
+            }
+            MonitoringJavaFileObject file = wrapped[i];
+            if (file == null) {
+                file = new MonitoringJavaFileObject(files[i], manager, true);
+                if (binaryNames != null) {
+                    file.binaryName = binaryNames[i];
+                }
+                wrapped[i] = file;
+            }
+            return file;
+        }
+
+        @Override
+        public Iterator<JavaFileObject> iterator() {
+            return new Iterator<JavaFileObject>() {
+                int i = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return i < files.length;
+                }
+
+                @Override
+                public JavaFileObject next() {
+                    if (i >= files.length) {
+                        throw new NoSuchElementException();
+                    }
+                    return get(i++);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
         }
     }
 
     static class MonitoringFileManager extends ForwardingJavaFileManager<JavaFileManager> {
 
-        final Set<JavaFileObject> set;
+        final StandardJavaFileManager standardManager;
+        final PathTable paths;
+        final SourceCache sourceCache;
+        final PackageIndex packageIndex;
+        /* listings are memoized for the lifetime of the manager, output
+           locations are not, as their content changes */
+        final Map<ListingKey, Listing> listings = new HashMap<ListingKey, Listing>();
+        /* on java 8, files of platform classes (ct.sym) can not be read
+           after archive is closed at the end of javac task, so only
+           listings of source path are memoized there */
+        static final boolean MEMOIZE_CLASSES = !System.getProperty("java.specification.version").startsWith("1.");
+        /* ids of source files read by javac, null if not monitoring */
+        IntSet monitor;
 
-        public MonitoringFileManager(JavaFileManager m, Set<JavaFileObject> set) {
+        public MonitoringFileManager(StandardJavaFileManager m, PathTable paths, SourceCache sourceCache, PackageIndex packageIndex) {
             super(m);
-            this.set = set;
+            this.standardManager = m;
+            this.paths = paths;
+            this.sourceCache = sourceCache;
+            this.packageIndex = packageIndex;
         }
 
-        public MonitoringFileManager(JavaFileManager m) {
-            this(m, null);
+        void record(MonitoringJavaFileObject file) {
+            if (monitor != null) {
+                if (file.id < 0) {
+                    file.id = paths.intern(file.file.getName());
+                }
+                monitor.add(file.id);
+            }
         }
 
         @Override
@@ -110,7 +315,11 @@ public class DependenciesGetter {
                 https://hg.openjdk.java.net/jdk8u/jdk8u/langtools/file/4c4c8a86bcb2/src/share/classes/com/sun/tools/javac/file/JavacFileManager.java#l640
              */
             if (file instanceof MonitoringJavaFileObject) {
-                file = ((MonitoringJavaFileObject) file).file;
+                MonitoringJavaFileObject monitoringFile = (MonitoringJavaFileObject) file;
+                if (monitoringFile.binaryName != null) {
+                    return monitoringFile.binaryName;
+                }
+                file = monitoringFile.file;
             }
             return super.inferBinaryName(location, file);
         }
@@ -133,22 +342,82 @@ public class DependenciesGetter {
                 return null;
             }
             if (location.equals(StandardLocation.SOURCE_PATH)) {
-                return new MonitoringJavaFileObject(file);
+                return new MonitoringJavaFileObject(file, this, false);
             }
             return file;
         }
 
         @Override
         public Iterable<javax.tools.JavaFileObject> list(JavaFileManager.Location location, String packageName, Set<javax.tools.JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
-            Iterable<JavaFileObject> iter = super.list(location, packageName, kinds, recurse);
-            if (location.equals(StandardLocation.SOURCE_PATH)) {
-                ArrayList<JavaFileObject> list = new ArrayList<JavaFileObject>();
+            if (location.isOutputLocation() || (!MEMOIZE_CLASSES && !location.equals(StandardLocation.SOURCE_PATH))) {
+                return super.list(location, packageName, kinds, recurse);
+            }
+            ListingKey key = new ListingKey(location, packageName, kinds, recurse);
+            Listing listing = listings.get(key);
+            if (listing == null) {
+                boolean wrap = location.equals(StandardLocation.SOURCE_PATH);
+                Iterable<? extends JavaFileObject> iter;
+                List<String> binaryNames = null;
+                if (wrap && !recurse && packageIndex != null) {
+                    binaryNames = new ArrayList<String>();
+                    iter = listSourcePath(packageName, kinds, binaryNames);
+                } else {
+                    iter = super.list(location, packageName, kinds, recurse);
+                }
+                ArrayList<JavaFileObject> files = new ArrayList<JavaFileObject>();
                 for (JavaFileObject file : iter) {
-                    list.add(new MonitoringJavaFileObject(file, set));
+                    files.add(file);
+                }
+                listing = new Listing(this, files.toArray(new JavaFileObject[files.size()]), wrap,
+                        binaryNames != null ? binaryNames.toArray(new String[binaryNames.size()]) : null);
+                listings.put(key, listing);
+            }
+            return listing;
+        }
+
+        private static JavaFileObject.Kind getKind(String name) {
+            for (JavaFileObject.Kind kind : JavaFileObject.Kind.values()) {
+                if (kind != JavaFileObject.Kind.OTHER && name.endsWith(kind.extension)) {
+                    return kind;
                 }
-                return list;
             }
-            return iter;
+            return JavaFileObject.Kind.OTHER;
+        }
+
+        /* lists package only in roots, which contain it (one directory
+           listing per such root), file objects created for files do not
+           infer binary names of links in fixed trees correctly (link is
+           resolved), so binary names are returned in binaryNames */
+        private Iterable<? extends JavaFileObject> listSourcePath(String packageName, Set<JavaFileObject.Kind> kinds, List<String> binaryNames) throws IOException {
+            List<File> files = new ArrayList<File>();
+            for (File root : packageIndex.getRoots(packageName)) {
+                Path dir = packageName.isEmpty() ? root.toPath() : root.toPath().resolve(packageName.replace(".", root.toPath().getFileSystem().getSeparator()));
+                List<String> names = new ArrayList<String>();
+                try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(dir)) {
+                    for (Path p : dirStream) {
+                        String name = p.getFileName().toString();
+                        JavaFileObject.Kind kind = getKind(name);
+                        /* only names of other files are checked for being
+                           directories, to avoid stat calls */
+                        if (kinds.contains(kind) && (kind != JavaFileObject.Kind.OTHER || !Files.isDirectory(p))) {
+                            names.add(name);
+                        }
+                    }
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                Collections.sort(names);
+                File dirFile = dir.toFile();
+                for (String name : names) {
+                    files.add(new File(dirFile, name));
+                    String simpleName = name.substring(0, name.length() - getKind(name).extension.length());
+                    binaryNames.add(packageName.isEmpty() ? simpleName : packageName + "." + simpleName);
+                }
+            }
+            if (files.isEmpty()) {
+                return Collections.<JavaFileObject>emptyList();
+            }
+            return standardManager.getJavaFileObjectsFromFiles(files);
         }
 
     }
@@ -156,38 +425,48 @@ public class DependenciesGetter {
     static class MonitoringJavaFileObject extends ForwardingJavaFileObject<JavaFileObject> {
 
         final JavaFileObject file;
-        final Set<JavaFileObject> set;
+        final MonitoringFileManager manager;
+        final boolean monitored;
+        /* id of file in manager's path table, computed on first access */
+        int id = -1;
+        String binaryName;
 
-        public MonitoringJavaFileObject(JavaFileObject f, Set<JavaFileObject> set) {
+        public MonitoringJavaFileObject(JavaFileObject f, MonitoringFileManager manager, boolean monitored) {
             super(f);
             this.file = f;
-            this.set = set;
+            this.manager = manager;
+            this.monitored = monitored;
         }
 
-        public MonitoringJavaFileObject(JavaFileObject f) {
-            this(f, null);
+        private void record() {
+            if (monitored) {
+                manager.record(this);
+            }
         }
 
         @Override
         public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
-            if (set != null) {
-                set.add(file);
+            record();
+            if (manager.sourceCache != null) {
+                return manager.sourceCache.getCharContent(file, ignoreEncodingErrors);
             }
             return super.getCharContent(ignoreEncodingErrors);
         }
 
         @Override
         public InputStream openInputStream() throws IOException {
-            if (set != null) {
-                set.add(file);
-            }
+            record();
             return super.openInputStream();
         }
 
         @Override
         public Reader openReader(boolean ignoreEncodingErrors) throws IOException {
-            if (set != null) {
-                set.add(file);
+            record();
+            if (manager.sourceCache != null) {
+                CharSequence content = manager.sourceCache.getCharContent(file, ignoreEncodingErrors);
+                if (content != null) {
+                    return new StringReader(content.toString());
+                }
             }
             return super.openReader(ignoreEncodingErrors);
         }
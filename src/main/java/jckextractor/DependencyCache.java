@@ -0,0 +1,401 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Persistent cache of resolved test dependencies. Entries are keyed by hash
+ * of test directory content (and its parent directories), additional files,
+ * jck identity and extractor version. Entries also record size and
+ * modification time of resolved dependencies (and of directories containing
+ * them, so that added classes are noticed) and entry is not used, when any
+ * of them changed. Least recently used entries are removed, when cache
+ * exceeds its size. Entries may be read and written
+ * from different threads (batch pipeline) without locking (only counters
+ * are synchronized): entries are replaced atomically and entry, which
+ * disappears while being read (deleted as outdated by other thread or
+ * evicted), is just a miss. Eviction excludes writing of entries, so that
+ * fresh entry is not deleted by eviction, which decided to remove the old
+ * one.
+ *
+ * @author zzambers
+ */
+public class DependencyCache {
+
+    private static final String HEADER = "jck-test-extractor-deps 3";
+    private static final String SUFFIX = ".deps";
+
+    private final Path cacheDir;
+    private final long maxSize;
+    private final Path jckDir;
+    private final PathTable paths;
+    private final byte[] jckIdentity;
+    /* read lock for writing of entries, write lock for eviction */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private int hits;
+    private int misses;
+
+    public DependencyCache(Path cacheDir, long maxSize, Path jckDir, PathTable paths) throws IOException {
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+        this.jckDir = jckDir;
+        this.paths = paths;
+        Files.createDirectories(cacheDir);
+        this.jckIdentity = getJckIdentity(jckDir);
+    }
+
+    public static String getVersion() {
+        String version = DependencyCache.class.getPackage().getImplementationVersion();
+        return version != null ? version : "dev";
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(MessageDigest md, String s) {
+        md.update(s.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+
+    /* jck is identified by its location and files in its top level directory
+       (release notes, index etc.), which differ between jck builds */
+    private static byte[] getJckIdentity(Path jckDir) throws IOException {
+        MessageDigest md = newDigest();
+        update(md, jckDir.toString());
+        List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(jckDir)) {
+            for (Path p : dirStream) {
+                if (Files.isRegularFile(p)) {
+                    files.add(p);
+                }
+            }
+        }
+        Collections.sort(files);
+        for (Path p : files) {
+            BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            update(md, p.getFileName().toString());
+            update(md, attrs.size() + " " + attrs.lastModifiedTime().toMillis());
+        }
+        return md.digest();
+    }
+
+    private static byte[] hashFile(Path file) throws IOException {
+        MessageDigest md = newDigest();
+        byte[] buffer = new byte[8192];
+        try (InputStream is = Files.newInputStream(file)) {
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                md.update(buffer, 0, read);
+            }
+        }
+        return md.digest();
+    }
+
+    private void hashDir(MessageDigest md, final Path dir, final boolean recursive, Executor executor) throws IOException {
+        FileUtil.ParallelVisitor<byte[]> visitor = new FileUtil.ParallelVisitor<byte[]>() {
+            @Override
+            public boolean preVisitDirectory(Path t) {
+                return recursive || t.equals(dir);
+            }
+
+            @Override
+            public byte[] visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                return hashFile(file);
+            }
+        };
+        SortedMap<Path, byte[]> hashes = FileUtil.parallelWalk(dir, visitor, executor);
+        for (Map.Entry<Path, byte[]> e : hashes.entrySet()) {
+            update(md, jckDir.relativize(e.getKey()).toString());
+            md.update(e.getValue());
+        }
+    }
+
+    /* computes key of test, testSrcDir is null for additional files */
+    public String getKey(Path testSrcDir, Collection<Path> additionalFiles, Executor executor) throws IOException {
+        MessageDigest md = newDigest();
+        update(md, HEADER);
+        update(md, getVersion());
+        md.update(jckIdentity);
+        if (testSrcDir != null) {
+            update(md, "test");
+            hashDir(md, testSrcDir, true, executor);
+            /* files in parent directories are also on source path */
+            for (Path dir = testSrcDir.getParent(); !dir.equals(jckDir); dir = dir.getParent()) {
+                hashDir(md, dir, false, executor);
+            }
+        }
+        update(md, "additional");
+        List<Path> sortedFiles = new ArrayList<Path>(additionalFiles);
+        Collections.sort(sortedFiles);
+        for (Path p : sortedFiles) {
+            update(md, jckDir.relativize(p).toString());
+            md.update(hashFile(p));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    private String toEntryPath(int id) {
+        return jckDir.relativize(paths.getPath(id)).toString();
+    }
+
+    private int fromEntryPath(String path) {
+        return paths.intern(jckDir.resolve(path).normalize());
+    }
+
+    private static String getStamp(Path p) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+        return attrs.size() + " " + attrs.lastModifiedTime().toMillis();
+    }
+
+    /* stamps of files, test depends on, and of their directories */
+    private SortedMap<String, String> getStamps(TestExtractor.TestInfo test) throws IOException {
+        IntSet deps = new IntSet();
+        for (IntSet originDeps : test.originDeps) {
+            deps.addAll(originDeps);
+        }
+        for (Map.Entry<Integer, IntSet> e : test.sourceDeps.entrySet()) {
+            deps.add(e.getKey());
+            deps.addAll(e.getValue());
+        }
+        SortedMap<String, String> stamps = new TreeMap<String, String>();
+        for (int dep : deps.toArray()) {
+            Path p = paths.getPath(dep);
+            for (Path dir : new Path[]{p, p.getParent()}) {
+                String entryPath = jckDir.relativize(dir).toString();
+                if (!stamps.containsKey(entryPath)) {
+                    stamps.put(entryPath, getStamp(dir));
+                }
+            }
+        }
+        return stamps;
+    }
+
+    /* returns cached test with resolved dependencies or null */
+    public TestExtractor.TestInfo get(String key, Path testSrcDir) throws IOException {
+        Path entry = cacheDir.resolve(key + SUFFIX);
+        if (!Files.isRegularFile(entry)) {
+            countMiss();
+            return null;
+        }
+        TestExtractor.TestInfo test = new TestExtractor.TestInfo(testSrcDir);
+        try (BufferedReader br = Files.newBufferedReader(entry, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(br.readLine())) {
+                throw new IOException("Wrong cache entry: " + entry);
+            }
+            IntSet srcDeps = null;
+            List<String> stamps = new ArrayList<String>();
+            String line;
+            while ((line = br.readLine()) != null) {
+                int spaceIndex = line.indexOf(' ');
+                String type = spaceIndex > 0 ? line.substring(0, spaceIndex) : line;
+                String value = spaceIndex > 0 ? line.substring(spaceIndex + 1) : "";
+                switch (type) {
+                    case "natives":
+                        test.hasNatives = true;
+                        break;
+                    case "file": {
+                        /* file <origin> <path> */
+                        int originEnd = value.indexOf(' ');
+                        TestExtractor.Origin origin = originEnd > 0 ? TestExtractor.Origin.forName(value.substring(0, originEnd)) : null;
+                        if (origin == null) {
+                            throw new IOException("Wrong cache entry: " + entry);
+                        }
+                        test.addDep(fromEntryPath(value.substring(originEnd + 1)), origin);
+                        break;
+                    }
+                    case "source":
+                        srcDeps = new IntSet();
+                        test.sourceDeps.put(fromEntryPath(value), srcDeps);
+                        break;
+                    case "dep":
+                        if (srcDeps == null) {
+                            throw new IOException("Wrong cache entry: " + entry);
+                        }
+                        srcDeps.add(fromEntryPath(value));
+                        break;
+                    case "stamp":
+                        stamps.add(value);
+                        break;
+                    default:
+                        throw new IOException("Wrong cache entry: " + entry);
+                }
+            }
+            /* stamp <size> <mtime> <path> */
+            for (String stamp : stamps) {
+                int sizeEnd = stamp.indexOf(' ');
+                int timeEnd = sizeEnd > 0 ? stamp.indexOf(' ', sizeEnd + 1) : -1;
+                if (timeEnd < 0) {
+                    throw new IOException("Wrong cache entry: " + entry);
+                }
+                Path p = jckDir.resolve(stamp.substring(timeEnd + 1)).normalize();
+                if (!stamp.substring(0, timeEnd).equals(getStamp(p))) {
+                    throw new IOException("Changed dependency: " + p);
+                }
+            }
+        } catch (IOException e) {
+            /* broken or outdated entry (also missing dependency or entry
+               removed meanwhile), resolve test again */
+            Files.deleteIfExists(entry);
+            countMiss();
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            /* evicted after it was read, it is still valid for this run */
+        }
+        test.cacheKey = key;
+        test.cached = true;
+        countHit();
+        return test;
+    }
+
+    private synchronized void countHit() {
+        ++hits;
+    }
+
+    private synchronized void countMiss() {
+        ++misses;
+    }
+
+    public void put(String key, TestExtractor.TestInfo test) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        lines.add(HEADER);
+        if (test.hasNatives) {
+            lines.add("natives");
+        }
+        for (TestExtractor.Origin origin : TestExtractor.Origin.values()) {
+            for (int dep : test.originDeps[origin.ordinal()].toArray()) {
+                lines.add("file " + origin + " " + toEntryPath(dep));
+            }
+        }
+        for (Map.Entry<Integer, IntSet> e : test.sourceDeps.entrySet()) {
+            lines.add("source " + toEntryPath(e.getKey()));
+            for (int dep : e.getValue().toArray()) {
+                lines.add("dep " + toEntryPath(dep));
+            }
+        }
+        for (Map.Entry<String, String> e : getStamps(test).entrySet()) {
+            lines.add("stamp " + e.getValue() + " " + e.getKey());
+        }
+        lock.readLock().lock();
+        try {
+            Path tmp = Files.createTempFile(cacheDir, key, ".tmp");
+            try {
+                Files.write(tmp, lines, StandardCharsets.UTF_8);
+                Files.move(tmp, cacheDir.resolve(key + SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /* removes least recently used entries, until cache fits its size */
+    public void evict() throws IOException {
+        lock.writeLock().lock();
+        try {
+            evictEntries();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void evictEntries() throws IOException {
+        final List<Path> entries = new ArrayList<Path>();
+        final List<BasicFileAttributes> attrs = new ArrayList<BasicFileAttributes>();
+        long size = 0;
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(cacheDir, "*" + SUFFIX)) {
+            for (Path p : dirStream) {
+                BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+                entries.add(p);
+                attrs.add(a);
+                size += a.size();
+            }
+        }
+        if (size <= maxSize) {
+            return;
+        }
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < entries.size(); ++i) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return attrs.get(a).lastModifiedTime().compareTo(attrs.get(b).lastModifiedTime());
+            }
+        });
+        for (int i : order) {
+            if (size <= maxSize) {
+                break;
+            }
+            Files.deleteIfExists(entries.get(i));
+            size -= attrs.get(i).size();
+        }
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+}
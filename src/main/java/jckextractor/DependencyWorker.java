@@ -0,0 +1,285 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Worker process resolving dependencies of tests for WorkerPool, so that
+ * javac memory (and failures) are isolated from the extractor. Requests
+ * are read from stdin, responses written to stdout, both are line based,
+ * terminated by "end" line.
+ *
+ * <pre>
+ * request:  test &lt;dir or -&gt;, java &lt;source&gt;..., ksh &lt;class&gt;...
+ * response: millis &lt;resolution time&gt;, file &lt;origin&gt; &lt;path&gt;...,
+ *           source &lt;path&gt; followed by dep &lt;path&gt;..., or
+ *           error &lt;message&gt;
+ * </pre>
+ *
+ * All paths are absolute. Values are escaped (backslash and line breaks),
+ * as paths may contain any character except NUL.
+ *
+ * @author zzambers
+ */
+public class DependencyWorker {
+
+    static final String END = "end";
+
+    /* writes request to resolve scanned test */
+    static void writeRequest(Writer w, TestExtractor.TestInfo test) throws IOException {
+        w.write("test " + (test.testSrcDir != null ? escape(test.testSrcDir.toString()) : "-") + "\n");
+        for (File f : test.javaSrcFiles) {
+            w.write("java " + escape(f.getAbsolutePath()) + "\n");
+        }
+        for (String kshClass : test.kshClasses) {
+            w.write("ksh " + escape(kshClass) + "\n");
+        }
+        w.write(END + "\n");
+        w.flush();
+    }
+
+    /* reads request, returns null at end of input */
+    static TestExtractor.TestInfo readRequest(BufferedReader br, FileSystem fs) throws IOException {
+        TestExtractor.TestInfo test = null;
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.equals(END)) {
+                if (test == null) {
+                    throw new IOException("Wrong request");
+                }
+                return test;
+            }
+            int spaceIndex = line.indexOf(' ');
+            String type = spaceIndex > 0 ? line.substring(0, spaceIndex) : line;
+            String value = spaceIndex > 0 ? unescape(line.substring(spaceIndex + 1)) : "";
+            switch (type) {
+                case "test":
+                    test = new TestExtractor.TestInfo(value.equals("-") ? null : fs.getPath(value));
+                    break;
+                case "java":
+                    checkRequest(test).javaSrcFiles.add(new File(value));
+                    break;
+                case "ksh":
+                    checkRequest(test).kshClasses.add(value);
+                    break;
+                default:
+                    throw new IOException("Wrong request: " + line);
+            }
+        }
+        return null;
+    }
+
+    /* escapes value, so that it fits on single line */
+    static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String unescape(String s) throws IOException {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (++i >= s.length()) {
+                throw new IOException("Wrong escape: " + s);
+            }
+            switch (s.charAt(i)) {
+                case '\\':
+                    sb.append('\\');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                default:
+                    throw new IOException("Wrong escape: " + s);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static TestExtractor.TestInfo checkRequest(TestExtractor.TestInfo test) throws IOException {
+        if (test == null) {
+            throw new IOException("Wrong request");
+        }
+        return test;
+    }
+
+    /* writes dependencies found by resolution (javac and ksh origins) */
+    static void writeResponse(Writer w, TestExtractor.TestInfo test, PathTable paths) throws IOException {
+        /* time measured by worker does not include its startup */
+        w.write("millis " + test.resolveMillis + "\n");
+        TestExtractor.Origin[] origins = {TestExtractor.Origin.JAVAC, TestExtractor.Origin.KSH};
+        for (TestExtractor.Origin origin : origins) {
+            for (int dep : test.originDeps[origin.ordinal()].toArray()) {
+                w.write("file " + origin + " " + escape(paths.toString(dep)) + "\n");
+            }
+        }
+        for (Map.Entry<Integer, IntSet> e : test.sourceDeps.entrySet()) {
+            w.write("source " + escape(paths.toString(e.getKey())) + "\n");
+            for (int dep : e.getValue().toArray()) {
+                w.write("dep " + escape(paths.toString(dep)) + "\n");
+            }
+        }
+        w.write(END + "\n");
+        w.flush();
+    }
+
+    /* reads response into test (in coordinator), failure of worker is
+       rethrown as IOException */
+    static void readResponse(BufferedReader br, TestExtractor.TestInfo test, PathTable paths) throws IOException {
+        FileSystem fs = paths.getFileSystem();
+        IntSet srcDeps = null;
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.equals(END)) {
+                return;
+            }
+            int spaceIndex = line.indexOf(' ');
+            String type = spaceIndex > 0 ? line.substring(0, spaceIndex) : line;
+            String value = spaceIndex > 0 ? unescape(line.substring(spaceIndex + 1)) : "";
+            switch (type) {
+                case "millis":
+                    try {
+                        test.resolveMillis = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Wrong response: " + line);
+                    }
+                    break;
+                case "file": {
+                    int originEnd = value.indexOf(' ');
+                    TestExtractor.Origin origin = originEnd > 0 ? TestExtractor.Origin.forName(value.substring(0, originEnd)) : null;
+                    if (origin == null) {
+                        throw new IOException("Wrong response: " + line);
+                    }
+                    test.addDep(paths.intern(fs.getPath(value.substring(originEnd + 1))), origin);
+                    break;
+                }
+                case "source":
+                    srcDeps = new IntSet();
+                    test.sourceDeps.put(paths.intern(fs.getPath(value)), srcDeps);
+                    break;
+                case "dep":
+                    if (srcDeps == null) {
+                        throw new IOException("Wrong response: " + line);
+                    }
+                    srcDeps.add(paths.intern(fs.getPath(value)));
+                    break;
+                case "error":
+                    throw new IOException("Worker failed: " + value);
+                default:
+                    throw new IOException("Wrong response: " + line);
+            }
+        }
+        throw new IOException("Worker terminated");
+    }
+
+    public static void main(String[] args) throws Exception {
+        TestExtractor.Options options = new TestExtractor.Options();
+        FileSystem fs = FileSystems.getDefault();
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--jck-dir":
+                    options.jckDir = fs.getPath(args[++i]).toAbsolutePath();
+                    break;
+                case "--io-threads":
+                    options.ioThreads = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.err.println("ERR: Unknown arg: " + args[i]);
+                    System.exit(1);
+            }
+        }
+        if (options.jckDir == null) {
+            System.err.println("ERR: Missing: --jck-dir arg");
+            System.exit(1);
+        }
+        options.ioExecutor = IoExecutors.newExecutor(options.ioThreads);
+        /* stdout is reserved for responses */
+        PrintStream out = System.out;
+        System.setOut(System.err);
+        BufferedReader br = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        PathTable paths = new PathTable(fs);
+        /* javac session is reused for all requests */
+        try (ResolveSession session = new ResolveSession(paths, options)) {
+            TestExtractor.TestInfo test;
+            while ((test = readRequest(br, fs)) != null) {
+                List<TestExtractor.TestInfo> tests = Collections.singletonList(test);
+                try {
+                    Path testDir = session.resolve(test);
+                    try {
+                        TestExtractor.convertSymbolicLinks(tests, paths, options, session.getLinksDir());
+                    } finally {
+                        FileUtil.recursiveDelete(testDir);
+                    }
+                } catch (Exception e) {
+                    w.write("error " + escape(String.valueOf(e)) + "\n" + END + "\n");
+                    w.flush();
+                    continue;
+                }
+                writeResponse(w, test, paths);
+            }
+        }
+    }
+}
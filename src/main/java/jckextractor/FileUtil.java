@@ -25,18 +25,39 @@ package jckextractor;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystem;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -46,23 +67,34 @@ import java.util.regex.Pattern;
  */
 public class FileUtil {
 
-    public static void recursiveCopy(final Path srcDir, final Path targetDir) throws IOException {
-        final Path parent = srcDir.getParent();
+    public static void recursiveCopy(final Path srcDir, final Path targetDir, Executor executor, int copyThreads) throws IOException {
+        Path parent = srcDir.getParent();
         final Path srcRelativizeDir = (parent != null) ? parent : srcDir;
-        FileVisitor<Path> fv = new SimpleFileVisitor<Path>() {
+        final Set<Path> dirs = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+        ParallelVisitor<Boolean> visitor = new ParallelVisitor<Boolean>() {
             @Override
-            public FileVisitResult preVisitDirectory(Path t, BasicFileAttributes bfa) throws IOException {
-                Files.createDirectories(targetDir.resolve(srcRelativizeDir.relativize(t)));
-                return FileVisitResult.CONTINUE;
+            public boolean preVisitDirectory(Path dir) {
+                dirs.add(dir);
+                return true;
             }
 
             @Override
-            public FileVisitResult visitFile(Path t, BasicFileAttributes bfa) throws IOException {
-                Files.copy(t, targetDir.resolve(srcRelativizeDir.relativize(t)));
-                return FileVisitResult.CONTINUE;
+            public Boolean visitFile(Path file, BasicFileAttributes attrs) {
+                return Boolean.TRUE;
             }
         };
-        Files.walkFileTree(srcDir, fv);
+        SortedMap<Path, Boolean> files = parallelWalk(srcDir, visitor, executor);
+        Map<Path, Path> copies = new HashMap<Path, Path>();
+        for (Path file : files.keySet()) {
+            copies.put(file, targetDir.resolve(srcRelativizeDir.relativize(file)));
+            dirs.remove(file.getParent());
+        }
+        /* directories of files are created by CopyEngine, only empty ones
+           are left */
+        for (Path dir : new TreeSet<Path>(dirs)) {
+            Files.createDirectories(targetDir.resolve(srcRelativizeDir.relativize(dir)));
+        }
+        CopyEngine.copyFiles(copies, executor, copyThreads);
     }
 
     public static void recursiveDelete(final Path file) throws IOException {
@@ -86,6 +118,203 @@ public class FileUtil {
         Files.walkFileTree(file, fv);
     }
 
+    /* visitor for parallelWalk, methods are called concurrently */
+    public static abstract class ParallelVisitor<T> {
+
+        /* returns false if directory should not be listed */
+        public boolean preVisitDirectory(Path dir) throws IOException {
+            return true;
+        }
+
+        /* returns false if content of listed directory should be skipped */
+        public boolean visitDirectory(Path dir, List<Path> entries) throws IOException {
+            return true;
+        }
+
+        /* returns value stored for file, null values are not stored */
+        public abstract T visitFile(Path file, BasicFileAttributes attrs) throws IOException;
+    }
+
+    /* walks file tree (not following links) listing directories and visiting
+       files concurrently using given (shared) executor (more threads help
+       mainly on network file systems), results are sorted by path, so that
+       they do not depend on scheduling. Calling thread also runs tasks of
+       the walk, so walks nested in tasks of the same executor can not
+       deadlock, when all its threads are waiting. */
+    public static <T> SortedMap<Path, T> parallelWalk(Path root, final ParallelVisitor<T> visitor, final Executor executor) throws IOException {
+        final ConcurrentMap<Path, T> results = new ConcurrentHashMap<Path, T>();
+        final Queue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final Object done = new Object();
+        /* runs next queued task of this walk (if any is left) */
+        final Runnable drainer = new Runnable() {
+            @Override
+            public void run() {
+                Runnable task = queue.poll();
+                if (task != null) {
+                    task.run();
+                }
+            }
+        };
+        abstract class WalkTask implements Runnable {
+
+            abstract void visit() throws IOException;
+
+            @Override
+            public void run() {
+                try {
+                    if (error.get() == null) {
+                        visit();
+                    }
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                } finally {
+                    if (pending.decrementAndGet() == 0) {
+                        synchronized (done) {
+                            done.notifyAll();
+                        }
+                    }
+                }
+            }
+
+            void submit(WalkTask task) {
+                pending.incrementAndGet();
+                queue.add(task);
+                synchronized (done) {
+                    done.notifyAll();
+                }
+                executor.execute(drainer);
+            }
+        }
+        class FileTask extends WalkTask {
+
+            final Path file;
+            final BasicFileAttributes attrs;
+
+            FileTask(Path file, BasicFileAttributes attrs) {
+                this.file = file;
+                this.attrs = attrs;
+            }
+
+            @Override
+            void visit() throws IOException {
+                T result = visitor.visitFile(file, attrs);
+                if (result != null) {
+                    results.put(file, result);
+                }
+            }
+        }
+        class DirTask extends WalkTask {
+
+            final Path dir;
+
+            DirTask(Path dir) {
+                this.dir = dir;
+            }
+
+            @Override
+            void visit() throws IOException {
+                if (!visitor.preVisitDirectory(dir)) {
+                    return;
+                }
+                List<Path> entries = new ArrayList<Path>();
+                try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(dir)) {
+                    for (Path p : dirStream) {
+                        entries.add(p);
+                    }
+                }
+                if (!visitor.visitDirectory(dir, entries)) {
+                    return;
+                }
+                for (Path p : entries) {
+                    BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isDirectory()) {
+                        submit(new DirTask(p));
+                    } else {
+                        submit(new FileTask(p, attrs));
+                    }
+                }
+            }
+        }
+        BasicFileAttributes rootAttrs = Files.readAttributes(root, BasicFileAttributes.class);
+        WalkTask rootTask = rootAttrs.isDirectory() ? new DirTask(root) : new FileTask(root, rootAttrs);
+        rootTask.submit(rootTask);
+        try {
+            while (pending.get() > 0) {
+                Runnable task = queue.poll();
+                if (task != null) {
+                    task.run();
+                    continue;
+                }
+                synchronized (done) {
+                    if (pending.get() > 0 && queue.isEmpty()) {
+                        done.wait();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            error.compareAndSet(null, e);
+            throw new InterruptedIOException();
+        }
+        rethrow(error.get());
+        return new TreeMap<Path, T>(results);
+    }
+
+    /* runs tasks using given (shared) executor, first failure is rethrown,
+       calling thread runs tasks not yet started by the executor, so that
+       nested calls from tasks of the same executor can not deadlock */
+    public static void runAll(List<? extends Callable<?>> tasks, Executor executor) throws IOException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        List<FutureTask<?>> futures = new ArrayList<FutureTask<?>>();
+        try {
+            for (Callable<?> task : tasks) {
+                FutureTask<?> future = newFutureTask(task);
+                futures.add(future);
+                executor.execute(future);
+            }
+            for (FutureTask<?> future : futures) {
+                /* no-op, if task was already started */
+                future.run();
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    rethrow(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static <T> FutureTask<T> newFutureTask(Callable<T> task) {
+        return new FutureTask<T>(task);
+    }
+
+    private static void rethrow(Throwable t) throws IOException {
+        if (t == null) {
+            return;
+        }
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new IOException(t);
+    }
+
     public static Path getPath(FileSystem fs, String... path) {
         int pathLength = path.length;
         if (pathLength > 1) {
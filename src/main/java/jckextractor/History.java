@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+/**
+ * History of extraction costs of tests (time to resolve dependencies,
+ * number and size of dependencies), kept in a file between runs. It is
+ * used to schedule tests largest first, so that few huge tests do not
+ * finish last, while other workers are idle. Cost of test without history
+ * is estimated from size of its directory. Javac session is warmed up before
+ * resolving first test, still tests resolved in shared session benefit from
+ * listings and sources cached for preceding tests, so recorded costs are
+ * only estimates.
+ *
+ * @author zzambers
+ */
+public class History {
+
+    private static final String HEADER = "jck-test-extractor-history 1";
+    /* estimate used when there is no history at all (10 ms per KiB) */
+    private static final double DEFAULT_MILLIS_PER_BYTE = 10.0 / 1024;
+
+    static class Entry {
+
+        final long millis;
+        final int deps;
+        final long bytes;
+        /* size of files directly in test directory */
+        final long dirSize;
+
+        Entry(long millis, int deps, long bytes, long dirSize) {
+            this.millis = millis;
+            this.deps = deps;
+            this.bytes = bytes;
+            this.dirSize = dirSize;
+        }
+    }
+
+    private final Path file;
+    private final Path jckTestsDir;
+    /* test (relative to tests dir) -> cost */
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+    /* predictions of scheduled tests and sizes of their directories */
+    private final Map<String, Long> predicted = new HashMap<String, Long>();
+    private final Map<String, Long> dirSizes = new HashMap<String, Long>();
+    private long predictedMillis;
+    private long actualMillis;
+    private int recorded;
+    private int recordedEstimated;
+
+    private History(Path file, Path jckDir) {
+        this.file = file;
+        this.jckTestsDir = jckDir.resolve("tests");
+    }
+
+    public static History load(Path file, Path jckDir) throws IOException {
+        History history = new History(file, jckDir);
+        if (!Files.exists(file)) {
+            return history;
+        }
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(HEADER)) {
+            /* unknown format, start again */
+            return history;
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            String[] parts = line.split(" ", 6);
+            if (parts.length != 6 || !parts[0].equals("test")) {
+                continue;
+            }
+            try {
+                history.entries.put(parts[5], new Entry(Long.parseLong(parts[1]), Integer.parseInt(parts[2]),
+                        Long.parseLong(parts[3]), Long.parseLong(parts[4])));
+            } catch (NumberFormatException e) {
+                /* malformed entries are ignored */
+            }
+        }
+        return history;
+    }
+
+    private String getTestName(Path testSrcDir) {
+        return ReverseIndex.toIndexPath(jckTestsDir, testSrcDir);
+    }
+
+    private double getMillisPerByte() {
+        long millis = 0;
+        long size = 0;
+        for (Entry entry : entries.values()) {
+            millis += entry.millis;
+            size += entry.dirSize;
+        }
+        return size > 0 && millis > 0 ? (double) millis / size : DEFAULT_MILLIS_PER_BYTE;
+    }
+
+    /* returns tests ordered by predicted cost (largest first, ties by path),
+       predictions are remembered to be compared with actual costs */
+    public synchronized List<Path> schedule(final List<Path> testSrcDirs, Executor executor) throws IOException {
+        long[] sizes = Shards.estimateSizes(testSrcDirs, executor);
+        double millisPerByte = getMillisPerByte();
+        final long[] costs = new long[sizes.length];
+        for (int i = 0; i < costs.length; ++i) {
+            String name = getTestName(testSrcDirs.get(i));
+            Entry entry = entries.get(name);
+            costs[i] = entry != null ? entry.millis : Math.round(sizes[i] * millisPerByte);
+            predicted.put(name, costs[i]);
+            dirSizes.put(name, sizes[i]);
+        }
+        Integer[] order = new Integer[costs.length];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int cmp = Long.compare(costs[b], costs[a]);
+                return cmp != 0 ? cmp : testSrcDirs.get(a).compareTo(testSrcDirs.get(b));
+            }
+        });
+        List<Path> scheduled = new ArrayList<Path>();
+        for (int i : order) {
+            scheduled.add(testSrcDirs.get(i));
+        }
+        return scheduled;
+    }
+
+    /* records cost of resolved test (cached tests are not resolved,
+       so their history is kept) */
+    public void record(TestExtractor.TestInfo test, PathTable paths) throws IOException {
+        if (test.testSrcDir == null || test.cached) {
+            return;
+        }
+        long bytes = 0;
+        int[] deps = test.deps.toArray();
+        for (int dep : deps) {
+            bytes += Files.size(paths.getPath(dep));
+        }
+        String name = getTestName(test.testSrcDir);
+        synchronized (this) {
+            Long dirSize = dirSizes.get(name);
+            if (dirSize == null) {
+                dirSize = Shards.getDirSize(test.testSrcDir);
+            }
+            Long prediction = predicted.get(name);
+            if (prediction != null) {
+                if (!entries.containsKey(name)) {
+                    ++recordedEstimated;
+                }
+                predictedMillis += prediction;
+                actualMillis += test.resolveMillis;
+                ++recorded;
+            }
+            entries.put(name, new Entry(test.resolveMillis, deps.length, bytes, dirSize));
+        }
+    }
+
+    public synchronized void save() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        lines.add(HEADER);
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            lines.add("test " + entry.millis + " " + entry.deps + " " + entry.bytes + " " + entry.dirSize + " " + e.getKey());
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, lines, StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /* predicted versus actual resolve time of tests resolved in this run */
+    public synchronized String getSummary() {
+        return "history: predicted " + predictedMillis + " ms, actual " + actualMillis + " ms (resolved "
+                + recorded + " test(s), " + recordedEstimated + " estimated from size)";
+    }
+}
@@ -0,0 +1,426 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Index of jck src directory (source roots, packages in them and fixed
+ * source tree of src/tests) kept up to date using WatchService, so that
+ * long running extractions (batch) do not rescan src for every resolution.
+ * Events are applied by sync, which is called when source path is created
+ * and by sessions (batch) before each resolution. Sessions keep copy of
+ * package index, sync returns packages changed since their copy was
+ * updated, so that only those (and their memoized listings) are refreshed.
+ * Changes which can not be applied incrementally (new jck.* roots,
+ * module-info.java, overflow of events) rebuild the index.
+ *
+ * Tests directory is not watched: fixed trees of tests are created from
+ * test directories (and their parents) for each resolution, so they are
+ * always current, while watching whole tests tree would need a watch for
+ * each of its (tens of thousands) directories.
+ *
+ * @author zzambers
+ */
+public class LiveJckIndex implements Closeable {
+
+    private final Path srcDir;
+    private final Path srcTestsDir;
+    private final Executor executor;
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+    private final Map<Path, WatchKey> dirs = new HashMap<Path, WatchKey>();
+    private final Path tmpDir;
+    private Path srcTestsFixed;
+    private List<File> jckSrcDirs;
+    private PackageIndex packageIndex;
+    /* java files from src/tests -> their links in fixed tree (includes files
+       hidden by other file of same name and package, first in path order
+       is linked) */
+    private final SortedMap<Path, Path> fixedLinks = new TreeMap<Path, Path>();
+    private int events;
+    private int rebuilds;
+    /* version is increased by every sync changing packages, changed
+       packages are kept for sessions, which copied index earlier */
+    private long version;
+    private long rebuildVersion;
+    private final SortedMap<Long, Set<String>> changes = new TreeMap<Long, Set<String>>();
+    private Set<String> pending = new HashSet<String>();
+
+    /* result of sync for session using copy of index */
+    public static class Update {
+
+        /* version to be passed to next sync */
+        public final long version;
+        /* index was rebuilt (e.g. new jck.* root), copy has to be created
+           again */
+        public final boolean rebuilt;
+        /* packages changed since previous version */
+        public final Set<String> packages;
+
+        Update(long version, boolean rebuilt, Set<String> packages) {
+            this.version = version;
+            this.rebuilt = rebuilt;
+            this.packages = packages;
+        }
+    }
+
+    public LiveJckIndex(Path jckDir, Executor executor) throws IOException {
+        this.srcDir = jckDir.resolve("src");
+        this.srcTestsDir = srcDir.resolve("tests");
+        this.executor = executor;
+        this.watcher = jckDir.getFileSystem().newWatchService();
+        this.tmpDir = Files.createTempDirectory("jck-extr-live");
+        try {
+            rebuild();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void rebuild() throws IOException {
+        ++rebuilds;
+        rebuildVersion = ++version;
+        changes.clear();
+        pending.clear();
+        for (WatchKey key : keys.keySet()) {
+            key.cancel();
+        }
+        keys.clear();
+        dirs.clear();
+        fixedLinks.clear();
+        if (srcTestsFixed != null) {
+            FileUtil.recursiveDelete(srcTestsFixed);
+            srcTestsFixed = null;
+        }
+        /* register first, so that no change made during scan is missed */
+        register(srcDir);
+        jckSrcDirs = TestExtractor.getJckSrcDirs(srcDir);
+        List<File> roots = new ArrayList<File>(jckSrcDirs);
+        if (Files.isDirectory(srcTestsDir)) {
+            srcTestsFixed = tmpDir.resolve("src-tests");
+            Files.createDirectories(srcTestsFixed);
+            for (Map.Entry<Path, String> e : TestExtractor.getFixedSrcTreeFiles(srcTestsDir, true, executor).entrySet()) {
+                fixedLinks.put(e.getKey(), TestExtractor.getFixedSrcTreeLink(srcTestsFixed, e.getKey(), e.getValue()));
+            }
+            for (Map.Entry<Path, Path> e : fixedLinks.entrySet()) {
+                Path link = e.getValue();
+                if (!Files.exists(link, LinkOption.NOFOLLOW_LINKS)) {
+                    Files.createDirectories(link.getParent());
+                    Files.createSymbolicLink(link, e.getKey());
+                }
+            }
+            roots.add(srcTestsFixed.toFile());
+        }
+        packageIndex = new PackageIndex(roots, executor);
+    }
+
+    private void register(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                if (!dirs.containsKey(d)) {
+                    WatchKey key = d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    keys.put(key, d);
+                    dirs.put(d, key);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /* applies pending file system events */
+    public synchronized void sync() throws IOException {
+        sync(version);
+    }
+
+    /* applies pending file system events, returns changes since version
+       (of previous update) */
+    public synchronized Update sync(long sinceVersion) throws IOException {
+        boolean needsRebuild = false;
+        WatchKey key;
+        while ((key = watcher.poll()) != null) {
+            Path dir = keys.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                ++events;
+                if (needsRebuild || dir == null) {
+                    continue;
+                }
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    needsRebuild = true;
+                    continue;
+                }
+                Path child = dir.resolve((Path) event.context());
+                needsRebuild = !apply(event.kind(), dir, child);
+            }
+            if (!key.reset()) {
+                Path removed = keys.remove(key);
+                if (removed != null) {
+                    dirs.remove(removed);
+                }
+            }
+        }
+        if (needsRebuild) {
+            rebuild();
+        } else if (!pending.isEmpty()) {
+            changes.put(++version, pending);
+            pending = new HashSet<String>();
+        }
+        if (rebuildVersion > sinceVersion) {
+            return new Update(version, true, Collections.<String>emptySet());
+        }
+        Set<String> changed = new HashSet<String>();
+        for (Set<String> packages : changes.tailMap(sinceVersion + 1).values()) {
+            changed.addAll(packages);
+        }
+        return new Update(version, false, changed);
+    }
+
+    /* copies roots of packages from this index to copy of it (see
+       createPackageIndex) */
+    public synchronized void updatePackageIndex(PackageIndex index, Set<String> packages) {
+        index.updatePackages(packageIndex, packages);
+    }
+
+    /* returns false, if event can not be applied incrementally */
+    private boolean apply(WatchEvent.Kind<?> kind, Path dir, Path child) throws IOException {
+        String name = child.getFileName().toString();
+        if (name.equals("module-info.java")
+                || (dir.equals(srcDir) && (name.startsWith("jck.") || name.equals("tests")))) {
+            return false;
+        }
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+            if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                register(child);
+                for (Path file : listFiles(child)) {
+                    fileAdded(file);
+                }
+            } else {
+                fileAdded(child);
+            }
+        } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            if (dirs.containsKey(child)) {
+                dirRemoved(child);
+            } else {
+                fileRemoved(child);
+            }
+        } else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+            /* package declaration may have changed */
+            if (fixedLinks.containsKey(child)) {
+                fileRemoved(child);
+                fileAdded(child);
+            }
+        }
+        return true;
+    }
+
+    private List<Path> listFiles(Path dir) throws IOException {
+        final List<Path> files = new ArrayList<Path>();
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    /* innermost root of jck sources containing path (src/jck.* are nested
+       in src, but their files belong only to them) */
+    private File getJckRoot(Path path) {
+        File root = packageIndex.getRoot(path);
+        return root != null && jckSrcDirs.contains(root) ? root : null;
+    }
+
+    private void fileAdded(Path file) throws IOException {
+        if (!Files.exists(file, LinkOption.NOFOLLOW_LINKS) || Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        File root = getJckRoot(file);
+        if (root != null) {
+            String pkg = PackageIndex.getPackageName(root.toPath(), file.getParent());
+            packageIndex.addPackage(pkg, root);
+            pending.add(pkg);
+        }
+        if (srcTestsFixed != null && file.startsWith(srcTestsDir) && file.getFileName().toString().endsWith(".java")) {
+            String pkg = TestExtractor.getPackage(file);
+            if (pkg != null) {
+                Path link = TestExtractor.getFixedSrcTreeLink(srcTestsFixed, file, pkg);
+                fixedLinks.put(file, link);
+                relink(link);
+            }
+        }
+    }
+
+    private void fileRemoved(Path file) throws IOException {
+        File root = getJckRoot(file);
+        if (root != null && !containsFiles(file.getParent())) {
+            String pkg = PackageIndex.getPackageName(root.toPath(), file.getParent());
+            packageIndex.removePackage(pkg, root);
+            pending.add(pkg);
+        }
+        Path link = fixedLinks.remove(file);
+        if (link != null) {
+            relink(link);
+        }
+    }
+
+    private void dirRemoved(Path dir) throws IOException {
+        File root = getJckRoot(dir);
+        if (root != null) {
+            pending.addAll(packageIndex.removePackages(PackageIndex.getPackageName(root.toPath(), dir), root));
+        }
+        List<Path> removedDirs = new ArrayList<Path>();
+        for (Path d : dirs.keySet()) {
+            if (d.startsWith(dir)) {
+                removedDirs.add(d);
+            }
+        }
+        for (Path d : removedDirs) {
+            WatchKey key = dirs.remove(d);
+            keys.remove(key);
+            key.cancel();
+        }
+        List<Path> removedFiles = new ArrayList<Path>();
+        for (Path file : fixedLinks.keySet()) {
+            if (file.startsWith(dir)) {
+                removedFiles.add(file);
+            }
+        }
+        for (Path file : removedFiles) {
+            fileRemoved(file);
+        }
+    }
+
+    /* points link to first (in path order) file mapped to it, removes it, if
+       there is no such file */
+    private void relink(Path link) throws IOException {
+        Path target = null;
+        for (Map.Entry<Path, Path> e : fixedLinks.entrySet()) {
+            if (e.getValue().equals(link)) {
+                target = e.getKey();
+                break;
+            }
+        }
+        if (Files.isSymbolicLink(link)) {
+            if (target != null && Files.readSymbolicLink(link).equals(target)) {
+                return;
+            }
+            Files.delete(link);
+        }
+        File srcTestsFixedRoot = srcTestsFixed.toFile();
+        String pkg = PackageIndex.getPackageName(srcTestsFixed, link.getParent());
+        if (target != null) {
+            Files.createDirectories(link.getParent());
+            Files.createSymbolicLink(link, target);
+            packageIndex.addPackage(pkg, srcTestsFixedRoot);
+        } else if (!containsFiles(link.getParent())) {
+            packageIndex.removePackage(pkg, srcTestsFixedRoot);
+        }
+        /* content of package changed, even if it is still indexed */
+        pending.add(pkg);
+    }
+
+    private static boolean containsFiles(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return false;
+        }
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(dir)) {
+            for (Path p : dirStream) {
+                if (!Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /* jck source roots (src and jck.* dirs) */
+    public synchronized List<File> getJckSrcDirs() {
+        return new ArrayList<File>(jckSrcDirs);
+    }
+
+    /* fixed source tree of src/tests, null if there is no such dir */
+    public synchronized Path getSrcTestsFixed() {
+        return srcTestsFixed;
+    }
+
+    /* directory containing fixed trees (symbolic links) of this index */
+    public Path getLinksDir() {
+        return tmpDir;
+    }
+
+    /* package index for source path (roots not in this index are scanned) */
+    public synchronized PackageIndex createPackageIndex(List<File> roots) throws IOException {
+        return new PackageIndex(packageIndex, roots, executor);
+    }
+
+    /* current version, see sync(long) */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public synchronized int getEvents() {
+        return events;
+    }
+
+    public synchronized int getRebuilds() {
+        return rebuilds;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            watcher.close();
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+}
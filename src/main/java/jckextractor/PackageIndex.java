@@ -0,0 +1,239 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Maps packages to source roots containing them, so that lookups of classes
+ * and packages go only to roots, which actually contain the package, instead
+ * of probing every root of the source path. Roots nested in other roots
+ * (src/jck.* in src) are not part of their parent root.
+ *
+ * @author zzambers
+ */
+public class PackageIndex {
+
+    private final List<File> roots;
+    private final Set<Path> rootPaths = new HashSet<Path>();
+    private final Map<String, List<File>> packages = new HashMap<String, List<File>>();
+
+    public PackageIndex(List<File> roots, Executor executor) throws IOException {
+        this.roots = new ArrayList<File>(roots);
+        addRootPaths();
+        for (File root : this.roots) {
+            addRoot(root, executor);
+        }
+    }
+
+    /* index with given roots, packages of roots indexed by base are copied
+       from it, other roots are scanned */
+    public PackageIndex(PackageIndex base, List<File> roots, Executor executor) throws IOException {
+        this.roots = new ArrayList<File>(roots);
+        addRootPaths();
+        synchronized (base) {
+            for (Map.Entry<String, List<File>> e : base.packages.entrySet()) {
+                for (File root : e.getValue()) {
+                    if (this.roots.contains(root)) {
+                        addPackage(e.getKey(), root);
+                    }
+                }
+            }
+        }
+        for (File root : this.roots) {
+            if (!base.roots.contains(root)) {
+                addRoot(root, executor);
+            }
+        }
+    }
+
+    private void addRootPaths() {
+        for (File root : roots) {
+            rootPaths.add(root.toPath());
+        }
+    }
+
+    /* returns innermost root containing path or null */
+    public File getRoot(Path path) {
+        for (Path p = path; p != null; p = p.getParent()) {
+            if (rootPaths.contains(p)) {
+                return p.toFile();
+            }
+        }
+        return null;
+    }
+
+    public List<File> getRoots() {
+        return Collections.unmodifiableList(roots);
+    }
+
+    /* replaces root by other one at the same position of source path (e.g.
+       fixed tree of next test in reused session), returns names of packages
+       contained in any of them */
+    public Set<String> replaceRoot(File oldRoot, File newRoot, Executor executor) throws IOException {
+        Set<String> changed = new HashSet<String>();
+        synchronized (this) {
+            for (Map.Entry<String, List<File>> e : packages.entrySet()) {
+                if (e.getValue().contains(oldRoot)) {
+                    changed.add(e.getKey());
+                }
+            }
+            removePackages("", oldRoot);
+            roots.set(roots.indexOf(oldRoot), newRoot);
+            rootPaths.remove(oldRoot.toPath());
+            rootPaths.add(newRoot.toPath());
+        }
+        changed.addAll(addRoot(newRoot, executor));
+        return changed;
+    }
+
+    /* indexes packages of root, returns their names */
+    private Set<String> addRoot(final File root, Executor executor) throws IOException {
+        final Path rootPath = root.toPath();
+        Set<String> names = new HashSet<String>();
+        if (!root.isDirectory()) {
+            return names;
+        }
+        /* packages are directories directly containing some files */
+        final Set<Path> dirs = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+        FileUtil.ParallelVisitor<Boolean> visitor = new FileUtil.ParallelVisitor<Boolean>() {
+            @Override
+            public boolean preVisitDirectory(Path dir) {
+                /* nested roots are indexed separately */
+                return dir.equals(rootPath) || !rootPaths.contains(dir);
+            }
+
+            @Override
+            public Boolean visitFile(Path file, BasicFileAttributes attrs) {
+                dirs.add(file.getParent());
+                return null;
+            }
+        };
+        FileUtil.parallelWalk(rootPath, visitor, executor);
+        for (Path dir : dirs) {
+            String name = getPackageName(rootPath, dir);
+            addPackage(name, root);
+            names.add(name);
+        }
+        return names;
+    }
+
+    static String getPackageName(Path root, Path dir) {
+        StringBuilder sb = new StringBuilder();
+        for (Path component : root.relativize(dir)) {
+            String name = component.toString();
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            sb.append(name);
+        }
+        return sb.toString();
+    }
+
+    synchronized void addPackage(String packageName, File root) {
+        List<File> pkgRoots = packages.get(packageName);
+        if (pkgRoots == null) {
+            pkgRoots = new ArrayList<File>(1);
+            packages.put(packageName, pkgRoots);
+        }
+        if (pkgRoots.contains(root)) {
+            return;
+        }
+        /* keep order of source path */
+        int rootIndex = roots.indexOf(root);
+        int i = 0;
+        while (i < pkgRoots.size() && roots.indexOf(pkgRoots.get(i)) < rootIndex) {
+            ++i;
+        }
+        pkgRoots.add(i, root);
+    }
+
+    synchronized void removePackage(String packageName, File root) {
+        List<File> pkgRoots = packages.get(packageName);
+        if (pkgRoots != null && pkgRoots.remove(root) && pkgRoots.isEmpty()) {
+            packages.remove(packageName);
+        }
+    }
+
+    /* removes package and its subpackages in root (e.g. deleted directory),
+       returns their names */
+    synchronized Set<String> removePackages(String packageName, File root) {
+        String prefix = packageName + ".";
+        Set<String> removed = new HashSet<String>();
+        List<String> names = new ArrayList<String>(packages.keySet());
+        for (String name : names) {
+            if (packageName.isEmpty() || name.equals(packageName) || name.startsWith(prefix)) {
+                removePackage(name, root);
+                removed.add(name);
+            }
+        }
+        return removed;
+    }
+
+    /* takes roots of given packages from base (index this one was copied
+       from), roots not in base are kept */
+    public void updatePackages(PackageIndex base, Set<String> names) {
+        synchronized (base) {
+            synchronized (this) {
+                for (String name : names) {
+                    for (File root : getRoots(name)) {
+                        if (base.roots.contains(root)) {
+                            removePackage(name, root);
+                        }
+                    }
+                    for (File root : base.getRoots(name)) {
+                        if (roots.contains(root)) {
+                            addPackage(name, root);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /* returns roots (in source path order) containing package */
+    public synchronized List<File> getRoots(String packageName) {
+        List<File> pkgRoots = packages.get(packageName);
+        if (pkgRoots == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<File>(pkgRoots);
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Table assigning int ids to paths. Paths are stored as prefix tree, where
+ * each node keeps only id of its parent and (interned) name of last path
+ * component, so that paths sharing long prefixes (all files in jck) take
+ * little memory and can be kept in IntSets.
+ *
+ * @author zzambers
+ */
+public class PathTable {
+
+    /* id of (virtual) node, which is parent of roots of absolute paths and
+       first components of relative paths */
+    public static final int TOP = 0;
+
+    private final FileSystem fs;
+    private final String separator;
+    private final Map<String, String> names = new HashMap<String, String>();
+    private int[] parents = new int[1024];
+    private String[] nodeNames = new String[1024];
+    private int size = 1;
+    /* hash table (parent, name) -> id + 1 */
+    private int[] children = new int[2048];
+
+    public PathTable(FileSystem fs) {
+        this.fs = fs;
+        this.separator = fs.getSeparator();
+        parents[TOP] = -1;
+        nodeNames[TOP] = "";
+    }
+
+    public FileSystem getFileSystem() {
+        return fs;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int intern(Path path) {
+        int id = TOP;
+        Path root = path.getRoot();
+        if (root != null) {
+            id = child(id, root.toString());
+        }
+        for (Path component : path) {
+            id = child(id, component.toString());
+        }
+        return id;
+    }
+
+    /* interns path given as string, without creating Path object */
+    public synchronized int intern(String path) {
+        int id = TOP;
+        int start = 0;
+        if (path.startsWith(separator)) {
+            id = child(id, separator);
+            start = separator.length();
+        }
+        while (start < path.length()) {
+            int end = path.indexOf(separator, start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end > start) {
+                id = child(id, path.substring(start, end));
+            }
+            start = end + separator.length();
+        }
+        return id;
+    }
+
+    public synchronized int getParent(int id) {
+        return parents[id];
+    }
+
+    /* returns true if path with id starts with path with ancestor id */
+    public synchronized boolean isAncestor(int ancestor, int id) {
+        for (int i = id; i >= 0; i = parents[i]) {
+            if (i == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized String getName(int id) {
+        return nodeNames[id];
+    }
+
+    public synchronized String toString(int id) {
+        StringBuilder sb = new StringBuilder();
+        append(sb, id);
+        return sb.toString();
+    }
+
+    public Path getPath(int id) {
+        return fs.getPath(toString(id));
+    }
+
+    private void append(StringBuilder sb, int id) {
+        if (id == TOP) {
+            return;
+        }
+        int parent = parents[id];
+        append(sb, parent);
+        if (parent != TOP && !(parents[parent] == TOP && nodeNames[parent].equals(separator))) {
+            sb.append(separator);
+        }
+        sb.append(nodeNames[id]);
+    }
+
+    private static int hash(int parent, String name) {
+        int h = parent * 0x9E3779B9 + name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private int child(int parent, String name) {
+        int mask = children.length - 1;
+        int i = hash(parent, name) & mask;
+        int entry;
+        while ((entry = children[i]) != 0) {
+            int id = entry - 1;
+            if (parents[id] == parent && nodeNames[id].equals(name)) {
+                return id;
+            }
+            i = (i + 1) & mask;
+        }
+        int id = size++;
+        if (id == parents.length) {
+            parents = Arrays.copyOf(parents, id * 2);
+            nodeNames = Arrays.copyOf(nodeNames, id * 2);
+        }
+        String interned = names.get(name);
+        if (interned == null) {
+            interned = name;
+            names.put(name, name);
+        }
+        parents[id] = parent;
+        nodeNames[id] = interned;
+        children[i] = id + 1;
+        if (size * 2 > children.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        children = new int[children.length * 2];
+        int mask = children.length - 1;
+        for (int id = 1; id < size; ++id) {
+            int i = hash(parents[id], nodeNames[id]) & mask;
+            while (children[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            children[i] = id + 1;
+        }
+    }
+
+}
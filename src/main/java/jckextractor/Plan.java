@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Dry run manifest of extraction: files, which would be copied to output
+ * directory, with their sizes and origins (why the file is needed).
+ *
+ * @author zzambers
+ */
+public class Plan {
+
+    final List<String> tests = new ArrayList<String>();
+    /* relative path (same in jck and output dir) -> file */
+    final SortedMap<String, PlanFile> files = new TreeMap<String, PlanFile>();
+    boolean natives;
+    long totalSize;
+    long scanMillis;
+    long resolveMillis;
+    long totalMillis;
+
+    static class PlanFile {
+
+        final long size;
+        final TestExtractor.Origin origin;
+
+        PlanFile(long size, TestExtractor.Origin origin) {
+            this.size = size;
+            this.origin = origin;
+        }
+    }
+
+    public static Plan create(TestExtractor.Discovery discovery, PathTable paths, TestExtractor.Options options) throws IOException {
+        Plan plan = new Plan();
+        plan.scanMillis = discovery.scanMillis;
+        plan.resolveMillis = discovery.resolveMillis;
+        for (TestExtractor.TestInfo test : discovery.tests) {
+            if (test.testSrcDir != null) {
+                plan.tests.add(options.jckDir.relativize(test.testSrcDir).toString());
+            }
+            plan.natives |= test.hasNatives;
+            for (int dep : test.deps.toArray()) {
+                Path srcFile = paths.getPath(dep);
+                String rel = options.jckDir.relativize(srcFile).toString();
+                if (!plan.files.containsKey(rel)) {
+                    plan.addFile(rel, Files.size(srcFile), test.getOrigin(dep));
+                }
+            }
+        }
+        if (plan.natives) {
+            Path inputSrcShareDir = options.jckDir.resolve("src").resolve("share");
+            FileUtil.ParallelVisitor<Long> visitor = new FileUtil.ParallelVisitor<Long>() {
+                @Override
+                public Long visitFile(Path file, BasicFileAttributes attrs) {
+                    return attrs.size();
+                }
+            };
+            SortedMap<Path, Long> nativeFiles = FileUtil.parallelWalk(inputSrcShareDir, visitor, options.ioExecutor);
+            for (Map.Entry<Path, Long> e : nativeFiles.entrySet()) {
+                String rel = options.jckDir.relativize(e.getKey()).toString();
+                if (!plan.files.containsKey(rel)) {
+                    plan.addFile(rel, e.getValue(), TestExtractor.Origin.NATIVE);
+                }
+            }
+        }
+        return plan;
+    }
+
+    private void addFile(String rel, long size, TestExtractor.Origin origin) {
+        files.put(rel, new PlanFile(size, origin));
+        totalSize += size;
+    }
+
+    /* prints plan as json */
+    public void print(PrintStream ps) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"tests\": [");
+        for (int i = 0; i < tests.size(); ++i) {
+            sb.append(i > 0 ? ", " : "").append(quote(tests.get(i)));
+        }
+        sb.append("],\n");
+        sb.append("  \"natives\": ").append(natives).append(",\n");
+        sb.append("  \"fileCount\": ").append(files.size()).append(",\n");
+        sb.append("  \"totalSize\": ").append(totalSize).append(",\n");
+        sb.append("  \"timing\": {\"scanMillis\": ").append(scanMillis)
+                .append(", \"resolveMillis\": ").append(resolveMillis)
+                .append(", \"totalMillis\": ").append(totalMillis).append("},\n");
+        sb.append("  \"files\": [");
+        boolean first = true;
+        for (Map.Entry<String, PlanFile> e : files.entrySet()) {
+            sb.append(first ? "\n" : ",\n");
+            first = false;
+            sb.append("    {\"path\": ").append(quote(e.getKey()))
+                    .append(", \"size\": ").append(e.getValue().size)
+                    .append(", \"origin\": ").append(quote(String.valueOf(e.getValue().origin)))
+                    .append("}");
+        }
+        sb.append(first ? "]\n" : "\n  ]\n");
+        sb.append("}");
+        ps.println(sb);
+    }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
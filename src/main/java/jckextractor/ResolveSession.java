@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Javac session reused for resolving tests one by one (batch pipeline,
+ * worker). Source path of jck sources, its package index and javac file
+ * manager are set up once, only fixed tree of resolved test (and its
+ * parents) is replaced for each test.
+ *
+ * @author zzambers
+ */
+public class ResolveSession implements Closeable {
+
+    private final PathTable paths;
+    private final TestExtractor.Options options;
+    private final Path tmpDir;
+    private DependenciesGetter getter;
+    private PackageIndex packageIndex;
+    private File testsRoot;
+    /* version of live index (--watch) package index was copied at */
+    private long liveVersion;
+
+    public ResolveSession(PathTable paths, TestExtractor.Options options) throws Exception {
+        this.paths = paths;
+        this.options = options;
+        tmpDir = Files.createTempDirectory("jck-extr");
+        try {
+            open(tmpDir);
+        } catch (Exception e) {
+            FileUtil.recursiveDelete(tmpDir);
+            throw e;
+        }
+        try {
+            TestExtractor.warmUp(getter, tmpDir);
+        } catch (Exception e) {
+            getter.close();
+            FileUtil.recursiveDelete(tmpDir);
+            throw e;
+        }
+    }
+
+    /* sets up source path (created in dir) and getter for it */
+    private void open(Path dir) throws Exception {
+        if (options.liveIndex != null) {
+            /* taken before the copy, so that changes made meanwhile are
+               applied again by next sync rather than missed */
+            liveVersion = options.liveIndex.getVersion();
+        }
+        List<File> srcDirs = TestExtractor.createSourcePath(Collections.<TestExtractor.TestInfo>emptyList(), dir, options);
+        testsRoot = dir.resolve("tests").toFile();
+        packageIndex = TestExtractor.createPackageIndex(srcDirs, options);
+        getter = new DependenciesGetter(srcDirs, paths, SourceCache.getShared(), packageIndex);
+    }
+
+    /* applies changes of jck src (--watch) made since previous resolution */
+    private void sync() throws Exception {
+        LiveJckIndex liveIndex = options.liveIndex;
+        if (liveIndex == null) {
+            return;
+        }
+        LiveJckIndex.Update update = liveIndex.sync(liveVersion);
+        if (update.rebuilt || getter == null) {
+            /* roots of source path changed, set up everything again (also
+               after failed attempt) */
+            if (getter != null) {
+                getter.close();
+                getter = null;
+            }
+            open(Files.createTempDirectory(tmpDir, "src"));
+            return;
+        }
+        if (!update.packages.isEmpty()) {
+            liveIndex.updatePackageIndex(packageIndex, update.packages);
+            getter.packagesChanged(update.packages);
+        }
+        liveVersion = update.version;
+    }
+
+    /* directory containing all links of session, see
+       TestExtractor.convertSymbolicLinks */
+    public Path getLinksDir() {
+        return tmpDir;
+    }
+
+    /* resolves dependencies of test, they may be links to files (in
+       getLinksDir) until converted, returns directory with fixed tree of
+       the test, which should be deleted after conversion */
+    public Path resolve(TestExtractor.TestInfo test) throws Exception {
+        sync();
+        Path testDir = Files.createTempDirectory(tmpDir, "test");
+        try {
+            /* each test has fixed tree at different path, so that files of
+               previous test are not confused with its own (e.g. by caches) */
+            Path testSrcDirFixed = testDir.resolve("tests");
+            TestExtractor.createFixedTestTrees(Collections.singletonList(test), testSrcDirFixed, options);
+            getter.replaceRoot(testsRoot, testSrcDirFixed.toFile(), options.ioExecutor);
+            testsRoot = testSrcDirFixed.toFile();
+            TestExtractor.resolveTestDependencies(test, getter, testDir);
+        } catch (Exception e) {
+            FileUtil.recursiveDelete(testDir);
+            throw e;
+        }
+        return testDir;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (getter != null) {
+                getter.close();
+            }
+        } finally {
+            FileUtil.recursiveDelete(tmpDir);
+        }
+    }
+
+}
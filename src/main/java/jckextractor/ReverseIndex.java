@@ -0,0 +1,249 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Reverse dependency index: for every jck file (relative path) tests, which
+ * depend on it. Index is stored in binary form, which is memory mapped and
+ * binary searched by queries, so it does not need to be parsed.
+ *
+ * Layout (big endian ints):
+ * <pre>
+ * header:   magic, version, testCount, fileCount
+ * files:    fileCount x (pathOffset, pathLength, postingsOffset, postingsCount),
+ *           sorted by utf-8 bytes of path
+ * tests:    testCount x (nameOffset, nameLength)
+ * postings: test indexes
+ * strings:  utf-8 bytes of paths and test names
+ * </pre>
+ *
+ * @author zzambers
+ */
+public class ReverseIndex {
+
+    private static final int MAGIC = 0x4a434b49;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int FILE_ENTRY_SIZE = 16;
+    private static final int TEST_ENTRY_SIZE = 8;
+
+    private final MappedByteBuffer buffer;
+    private final int testCount;
+    private final int fileCount;
+
+    private ReverseIndex(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Wrong index file");
+        }
+        testCount = buffer.getInt(8);
+        fileCount = buffer.getInt(12);
+    }
+
+    public static ReverseIndex open(Path indexFile) throws IOException {
+        try (FileChannel fc = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            /* mapping remains valid after channel is closed */
+            return new ReverseIndex(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+        }
+    }
+
+    /* path used as key in index (relative, with '/' separators) */
+    public static String toIndexPath(Path dir, Path file) {
+        return dir.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    public static void write(Path indexFile, List<TestExtractor.TestInfo> tests, PathTable paths, Path jckDir) throws IOException {
+        Path jckTestsDir = jckDir.resolve("tests");
+        List<byte[]> testNames = new ArrayList<byte[]>();
+        /* path -> indexes of tests */
+        TreeMap<byte[], IntSet> files = new TreeMap<byte[], IntSet>(new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] b1, byte[] b2) {
+                return compareBytes(b1, 0, b1.length, b2);
+            }
+        });
+        for (TestExtractor.TestInfo test : tests) {
+            if (test.testSrcDir == null) {
+                continue;
+            }
+            int testIndex = testNames.size();
+            testNames.add(toIndexPath(jckTestsDir, test.testSrcDir).getBytes(StandardCharsets.UTF_8));
+            for (int dep : test.deps.toArray()) {
+                byte[] key = toIndexPath(jckDir, paths.getPath(dep)).getBytes(StandardCharsets.UTF_8);
+                IntSet testIndexes = files.get(key);
+                if (testIndexes == null) {
+                    testIndexes = new IntSet();
+                    files.put(key, testIndexes);
+                }
+                testIndexes.add(testIndex);
+            }
+        }
+
+        int testsOffset = HEADER_SIZE + files.size() * FILE_ENTRY_SIZE;
+        int postingsOffset = testsOffset + testNames.size() * TEST_ENTRY_SIZE;
+        int stringsOffset = postingsOffset;
+        for (IntSet testIndexes : files.values()) {
+            stringsOffset += testIndexes.size() * 4;
+        }
+        int size = stringsOffset;
+        for (byte[] b : files.keySet()) {
+            size += b.length;
+        }
+        for (byte[] b : testNames) {
+            size += b.length;
+        }
+
+        ByteBuffer bb = ByteBuffer.allocate(size);
+        bb.putInt(0, MAGIC);
+        bb.putInt(4, VERSION);
+        bb.putInt(8, testNames.size());
+        bb.putInt(12, files.size());
+        int entryPos = HEADER_SIZE;
+        int postingPos = postingsOffset;
+        int stringPos = stringsOffset;
+        for (Map.Entry<byte[], IntSet> e : files.entrySet()) {
+            int[] testIndexes = e.getValue().toArray();
+            bb.putInt(entryPos, stringPos);
+            bb.putInt(entryPos + 4, e.getKey().length);
+            bb.putInt(entryPos + 8, postingPos);
+            bb.putInt(entryPos + 12, testIndexes.length);
+            entryPos += FILE_ENTRY_SIZE;
+            for (int testIndex : testIndexes) {
+                bb.putInt(postingPos, testIndex);
+                postingPos += 4;
+            }
+            stringPos = putBytes(bb, stringPos, e.getKey());
+        }
+        for (byte[] testName : testNames) {
+            bb.putInt(entryPos, stringPos);
+            bb.putInt(entryPos + 4, testName.length);
+            entryPos += TEST_ENTRY_SIZE;
+            stringPos = putBytes(bb, stringPos, testName);
+        }
+
+        Path dir = indexFile.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, indexFile.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, bb.array());
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static int putBytes(ByteBuffer bb, int pos, byte[] bytes) {
+        for (byte b : bytes) {
+            bb.put(pos++, b);
+        }
+        return pos;
+    }
+
+    public int getTestCount() {
+        return testCount;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public String getTestName(int testIndex) {
+        int entryPos = HEADER_SIZE + fileCount * FILE_ENTRY_SIZE + testIndex * TEST_ENTRY_SIZE;
+        return getString(buffer.getInt(entryPos), buffer.getInt(entryPos + 4));
+    }
+
+    private String getString(int offset, int length) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            b[i] = buffer.get(offset + i);
+        }
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /* returns names of tests depending on file (path relative to jck dir) */
+    public SortedSet<String> getAffectedTests(String path) {
+        SortedSet<String> tests = new TreeSet<String>();
+        byte[] key = path.replace(File.separatorChar, '/').getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = fileCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int entryPos = HEADER_SIZE + mid * FILE_ENTRY_SIZE;
+            int c = compareBytes(buffer.getInt(entryPos), buffer.getInt(entryPos + 4), key);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                int postingPos = buffer.getInt(entryPos + 8);
+                int count = buffer.getInt(entryPos + 12);
+                for (int i = 0; i < count; ++i) {
+                    tests.add(getTestName(buffer.getInt(postingPos + i * 4)));
+                }
+                break;
+            }
+        }
+        return tests;
+    }
+
+    /* compares bytes of mapped index with key (unsigned) */
+    private int compareBytes(int offset, int length, byte[] key) {
+        int len = Math.min(length, key.length);
+        for (int i = 0; i < len; ++i) {
+            int c = (buffer.get(offset + i) & 0xff) - (key[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - key.length;
+    }
+
+    private static int compareBytes(byte[] b1, int offset, int length, byte[] key) {
+        int len = Math.min(length, key.length);
+        for (int i = 0; i < len; ++i) {
+            int c = (b1[offset + i] & 0xff) - (key[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - key.length;
+    }
+}
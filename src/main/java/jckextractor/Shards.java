@@ -0,0 +1,394 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Splitting of test list to shards (extracted e.g. on different machines)
+ * and merging of their outputs. Partitioning is deterministic (same test
+ * list always gives same shards) and balanced by estimated size of tests
+ * (size of files in test directory) rather than by their count. Each shard
+ * writes manifest (tests and files with origins) and stats to its output,
+ * merge combines them into single output, files needed by several shards
+ * (e.g. common jck sources) are copied only once.
+ *
+ * @author zzambers
+ */
+public class Shards {
+
+    public static final String MANIFEST_FILE = "extract-manifest.txt";
+    public static final String STATS_FILE = "extract-stats.txt";
+    private static final String MANIFEST_HEADER = "jck-test-extractor-manifest 1";
+    /* top level files of output, which are regenerated by merge */
+    private static final Set<String> GENERATED_FILES = new HashSet<String>(
+            Arrays.asList(MANIFEST_FILE, STATS_FILE, "Makefile", "sources.mk", "tryRun.sh"));
+
+    /* manifest of shard (or merged) output */
+    static class Manifest {
+
+        String shard;
+        boolean batch;
+        boolean natives;
+        /* test dirs relative to jck tests dir, separated by "/" */
+        final Set<String> tests = new LinkedHashSet<String>();
+        /* relative path (same in jck and output dir) -> origin and size */
+        final SortedMap<String, String> files = new TreeMap<String, String>();
+        /* stats (name -> value), sorted by name */
+        final Map<String, Long> stats = new TreeMap<String, Long>();
+    }
+
+    /* returns test directories belonging to shard index (1 based) of count,
+       tests are assigned largest first, each to the shard with the smallest
+       total size so far (ties broken by path and shard index), result keeps
+       order of testSrcDirs */
+    public static List<Path> select(final List<Path> dirs, int index, int count, Executor executor) throws IOException {
+        final long[] sizes = estimateSizes(dirs, executor);
+        Integer[] order = new Integer[dirs.size()];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int cmp = Long.compare(sizes[b], sizes[a]);
+                return cmp != 0 ? cmp : dirs.get(a).compareTo(dirs.get(b));
+            }
+        });
+        long[] loads = new long[count];
+        boolean[] selected = new boolean[dirs.size()];
+        for (int i : order) {
+            int shard = 0;
+            for (int j = 1; j < count; ++j) {
+                if (loads[j] < loads[shard]) {
+                    shard = j;
+                }
+            }
+            loads[shard] += sizes[i];
+            selected[i] = shard == index - 1;
+        }
+        List<Path> result = new ArrayList<Path>();
+        for (int i = 0; i < selected.length; ++i) {
+            if (selected[i]) {
+                result.add(dirs.get(i));
+            }
+        }
+        return result;
+    }
+
+    /* size of files directly in test directories (nested directories
+       are usually other tests) */
+    static long[] estimateSizes(List<Path> testSrcDirs, Executor executor) throws IOException {
+        final long[] sizes = new long[testSrcDirs.size()];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < sizes.length; ++i) {
+            final int index = i;
+            final Path dir = testSrcDirs.get(i);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    sizes[index] = getDirSize(dir);
+                    return null;
+                }
+            });
+        }
+        FileUtil.runAll(tasks, executor);
+        return sizes;
+    }
+
+    static long getDirSize(Path dir) throws IOException {
+        long size = 0;
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(dir)) {
+            for (Path p : dirStream) {
+                BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (!attrs.isDirectory()) {
+                    size += attrs.size();
+                }
+            }
+        }
+        return size;
+    }
+
+    public static Manifest createManifest(Plan plan, TestExtractor.Options options) {
+        Manifest manifest = new Manifest();
+        manifest.shard = options.shardIndex + "/" + options.shardCount;
+        manifest.natives = plan.natives;
+        for (String test : plan.tests) {
+            String name = test.replace(File.separatorChar, '/');
+            manifest.tests.add(name.startsWith("tests/") ? name.substring(6) : name);
+        }
+        for (Map.Entry<String, Plan.PlanFile> e : plan.files.entrySet()) {
+            manifest.files.put(e.getKey().replace(File.separatorChar, '/'), e.getValue().origin + " " + e.getValue().size);
+        }
+        manifest.stats.put("tests", (long) manifest.tests.size());
+        manifest.stats.put("files", (long) plan.files.size());
+        manifest.stats.put("bytes", plan.totalSize);
+        manifest.stats.put("scan-millis", plan.scanMillis);
+        manifest.stats.put("resolve-millis", plan.resolveMillis);
+        manifest.stats.put("total-millis", plan.totalMillis);
+        return manifest;
+    }
+
+    /* manifest of batch shard, only lists tests (each test has its own
+       subdirectory, so there is nothing to deduplicate) */
+    public static Manifest createBatchManifest(TestExtractor.Options options, long totalMillis) {
+        Manifest manifest = new Manifest();
+        manifest.shard = options.shardIndex + "/" + options.shardCount;
+        manifest.batch = true;
+        Path jckTestsDir = options.jckDir.resolve("tests");
+        for (Path testSrcDir : options.testSrcDirs) {
+            manifest.tests.add(ReverseIndex.toIndexPath(jckTestsDir, testSrcDir));
+        }
+        manifest.stats.put("tests", (long) manifest.tests.size());
+        manifest.stats.put("total-millis", totalMillis);
+        return manifest;
+    }
+
+    public static void write(Manifest manifest, Path outputDir) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        lines.add(MANIFEST_HEADER);
+        if (manifest.shard != null) {
+            lines.add("shard " + manifest.shard);
+        }
+        lines.add("batch " + manifest.batch);
+        lines.add("natives " + manifest.natives);
+        for (String test : manifest.tests) {
+            lines.add("test " + test);
+        }
+        for (Map.Entry<String, String> e : manifest.files.entrySet()) {
+            lines.add("file " + e.getValue() + " " + e.getKey());
+        }
+        Files.write(outputDir.resolve(MANIFEST_FILE), lines, StandardCharsets.UTF_8);
+
+        lines.clear();
+        if (manifest.shard != null) {
+            lines.add("shard " + manifest.shard);
+        }
+        for (Map.Entry<String, Long> e : manifest.stats.entrySet()) {
+            lines.add(e.getKey() + " " + e.getValue());
+        }
+        Files.write(outputDir.resolve(STATS_FILE), lines, StandardCharsets.UTF_8);
+    }
+
+    public static Manifest read(Path outputDir) throws IOException {
+        Path manifestFile = outputDir.resolve(MANIFEST_FILE);
+        if (!Files.isRegularFile(manifestFile)) {
+            throw new IOException("Not an output of shard (missing " + MANIFEST_FILE + "): " + outputDir);
+        }
+        Manifest manifest = new Manifest();
+        List<String> lines = Files.readAllLines(manifestFile, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(MANIFEST_HEADER)) {
+            throw new IOException("Unsupported manifest: " + manifestFile);
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            String[] parts = line.split(" ", 4);
+            if (parts.length == 2 && parts[0].equals("shard")) {
+                manifest.shard = parts[1];
+            } else if (parts.length == 2 && parts[0].equals("batch")) {
+                manifest.batch = Boolean.parseBoolean(parts[1]);
+            } else if (parts.length == 2 && parts[0].equals("natives")) {
+                manifest.natives = Boolean.parseBoolean(parts[1]);
+            } else if (line.startsWith("test ")) {
+                manifest.tests.add(line.substring(5));
+            } else if (parts.length == 4 && parts[0].equals("file")) {
+                manifest.files.put(parts[3], parts[1] + " " + parts[2]);
+            } else if (!line.isEmpty()) {
+                throw new IOException("Malformed manifest line: " + line + " (" + manifestFile + ")");
+            }
+        }
+        Path statsFile = outputDir.resolve(STATS_FILE);
+        if (Files.isRegularFile(statsFile)) {
+            for (String line : Files.readAllLines(statsFile, StandardCharsets.UTF_8)) {
+                String[] parts = line.split(" ");
+                if (parts.length == 2 && !parts[0].equals("shard")) {
+                    manifest.stats.put(parts[0], Long.parseLong(parts[1]));
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /* merges outputs of shards to outputDir: files are copied (file present
+       in several shards only from the first one), manifests are unioned,
+       stats summed and Makefile, sources.mk and tryRun.sh regenerated for
+       all tests */
+    public static Manifest merge(List<Path> shardDirs, Path outputDir, Executor executor, int copyThreads) throws IOException {
+        List<Manifest> manifests = new ArrayList<Manifest>();
+        for (Path shardDir : shardDirs) {
+            manifests.add(read(shardDir));
+        }
+        Manifest merged = new Manifest();
+        merged.batch = manifests.get(0).batch;
+        for (Manifest manifest : manifests) {
+            if (manifest.batch != merged.batch) {
+                throw new IOException("Can not merge batch and non-batch outputs");
+            }
+            merged.natives |= manifest.natives;
+            merged.tests.addAll(manifest.tests);
+            for (Map.Entry<String, String> e : manifest.files.entrySet()) {
+                if (!merged.files.containsKey(e.getKey())) {
+                    merged.files.put(e.getKey(), e.getValue());
+                }
+            }
+        }
+
+        /* relative path in output -> file of first shard containing it */
+        final SortedMap<Path, Path> files = new TreeMap<Path, Path>();
+        long duplicates = 0;
+        long duplicateBytes = 0;
+        for (Path shardDir : shardDirs) {
+            final Path dir = shardDir;
+            FileUtil.ParallelVisitor<Long> visitor = new FileUtil.ParallelVisitor<Long>() {
+                @Override
+                public Long visitFile(Path file, BasicFileAttributes attrs) {
+                    if (file.getParent().equals(dir) && GENERATED_FILES.contains(file.getFileName().toString())) {
+                        return null;
+                    }
+                    return attrs.size();
+                }
+            };
+            for (Map.Entry<Path, Long> e : FileUtil.parallelWalk(shardDir, visitor, executor).entrySet()) {
+                Path rel = shardDir.relativize(e.getKey());
+                if (files.containsKey(rel)) {
+                    ++duplicates;
+                    duplicateBytes += e.getValue();
+                } else {
+                    files.put(rel, e.getKey());
+                }
+            }
+        }
+        Map<Path, Path> copies = new HashMap<Path, Path>();
+        for (Map.Entry<Path, Path> e : files.entrySet()) {
+            copies.put(e.getValue(), outputDir.resolve(e.getKey().toString()));
+        }
+        CopyEngine.copyFiles(copies, executor, copyThreads);
+
+        if (!merged.batch) {
+            SortedMap<String, SortedSet<String>> rules = new TreeMap<String, SortedSet<String>>();
+            SortedSet<String> libSources = new TreeSet<String>();
+            for (Path shardDir : shardDirs) {
+                readSourcesMakefile(shardDir, rules, libSources);
+            }
+            /* source compiled by some shard has its own rule */
+            libSources.removeAll(rules.keySet());
+            TestExtractor.writeSourcesMakefile(rules, libSources, outputDir);
+            StringBuilder testNames = new StringBuilder();
+            for (String test : merged.tests) {
+                testNames.append(testNames.length() > 0 ? " " : "").append(test);
+            }
+            TestExtractor.writeRunScripts(outputDir, testNames.toString());
+        }
+
+        long bytes = 0;
+        for (String value : merged.files.values()) {
+            bytes += Long.parseLong(value.substring(value.indexOf(' ') + 1));
+        }
+        merged.stats.put("shards", (long) manifests.size());
+        merged.stats.put("tests", (long) merged.tests.size());
+        if (!merged.batch) {
+            merged.stats.put("files", (long) merged.files.size());
+            merged.stats.put("bytes", bytes);
+        }
+        merged.stats.put("duplicate-files", duplicates);
+        merged.stats.put("duplicate-bytes", duplicateBytes);
+        for (Manifest manifest : manifests) {
+            for (String key : Arrays.asList("scan-millis", "resolve-millis", "total-millis")) {
+                Long value = manifest.stats.get(key);
+                if (value != null) {
+                    Long sum = merged.stats.get(key);
+                    merged.stats.put(key, (sum != null ? sum : 0) + value);
+                    /* shards run concurrently, so slowest one matters */
+                    if (key.equals("total-millis")) {
+                        Long max = merged.stats.get("max-total-millis");
+                        merged.stats.put("max-total-millis", Math.max(max != null ? max : 0, value));
+                    }
+                }
+            }
+        }
+        write(merged, outputDir);
+        return merged;
+    }
+
+    /* reads rules of sources.mk (stamp target -> dependencies) */
+    private static void readSourcesMakefile(Path dir, SortedMap<String, SortedSet<String>> rules, SortedSet<String> libSources) throws IOException {
+        Path sourcesMk = dir.resolve("sources.mk");
+        if (!Files.isRegularFile(sourcesMk)) {
+            return;
+        }
+        try (BufferedReader br = Files.newBufferedReader(sourcesMk, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith(TestExtractor.LIB_SOURCES_VAR + " :=")) {
+                    for (String src : line.substring(TestExtractor.LIB_SOURCES_VAR.length() + 3).trim().split(" ")) {
+                        if (!src.isEmpty()) {
+                            libSources.add(src);
+                        }
+                    }
+                    continue;
+                }
+                int colonIndex = line.indexOf(':');
+                if (line.startsWith("#") || !line.startsWith("classes/.stamps/") || colonIndex < 0) {
+                    continue;
+                }
+                String target = line.substring("classes/.stamps/".length(), colonIndex);
+                if (target.endsWith(".stamp")) {
+                    target = target.substring(0, target.length() - 6);
+                }
+                SortedSet<String> deps = rules.get(target);
+                if (deps == null) {
+                    deps = new TreeSet<String>();
+                    rules.put(target, deps);
+                }
+                for (String dep : line.substring(colonIndex + 1).trim().split(" ")) {
+                    if (!dep.isEmpty()) {
+                        deps.add(dep);
+                    }
+                }
+            }
+        }
+    }
+}
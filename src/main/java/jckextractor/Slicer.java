@@ -0,0 +1,262 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor;
+
+import com.sun.source.tree.BlockTree;
+import com.sun.source.tree.ClassTree;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.MemberReferenceTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.NewClassTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.tree.VariableTree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.TreePathScanner;
+import com.sun.source.util.Trees;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.JavaFileObject;
+
+/**
+ * Finds sources really needed by test sources: starting from all members of
+ * test sources, javac trees of reached members (methods, constructors,
+ * fields, types) are scanned for referenced members, until closure is found.
+ * Result are files declaring reached members, which is usually much smaller
+ * set than all sources read by javac (javac reads whole file for any
+ * reference to a class and then everything referenced by that file).
+ *
+ * Closure is conservative, for reached type its header (supertypes,
+ * annotations), initializers, fields with initializers and methods
+ * overriding supertype methods (dynamic dispatch) are reached as well.
+ * Members reached only by reflection are not found.
+ *
+ * Uses com.sun.source (Trees) API, so it requires jdk.compiler module (or
+ * tools.jar on class path of java 8).
+ *
+ * @author zzambers
+ */
+public class Slicer {
+
+    private final Trees trees;
+    private final Elements elements;
+    private final Types types;
+    private final PathTable paths;
+    private final Set<Element> reached = new HashSet<Element>();
+    private final Deque<Element> pending = new ArrayDeque<Element>();
+    private final IntSet slice;
+
+    private Slicer(JavacTask task, PathTable paths, IntSet slice) {
+        this.trees = Trees.instance(task);
+        this.elements = task.getElements();
+        this.types = task.getTypes();
+        this.paths = paths;
+        this.slice = slice;
+    }
+
+    /* adds ids of files declaring members reachable from sources to slice,
+       javac runs in session of getter (same source path and caches) */
+    public static void slice(DependenciesGetter getter, Iterable<File> sources, IntSet slice) throws IOException {
+        Iterable<? extends JavaFileObject> compilationUnits = getter.fileManager.getJavaFileObjectsFromFiles(sources);
+        JavacTask task = (JavacTask) getter.compiler.getTask(null, getter.manager, null, null, null, compilationUnits);
+        Iterable<? extends CompilationUnitTree> units = task.parse();
+        task.analyze();
+        Slicer slicer = new Slicer(task, getter.paths, slice);
+        for (CompilationUnitTree unit : units) {
+            slicer.addFile(unit);
+            slicer.scan(new TreePath(unit));
+        }
+        slicer.run();
+    }
+
+    private void run() {
+        while (!pending.isEmpty()) {
+            Element e = pending.removeFirst();
+            TreePath path = trees.getPath(e);
+            if (path == null) {
+                /* not from sources (e.g. jdk class) */
+                continue;
+            }
+            addFile(path.getCompilationUnit());
+            if (e instanceof TypeElement) {
+                visitType((TypeElement) e, path);
+            } else {
+                scan(path);
+            }
+            reach(e.getEnclosingElement());
+        }
+    }
+
+    private void visitType(TypeElement type, TreePath path) {
+        Tree leaf = path.getLeaf();
+        if (!(leaf instanceof ClassTree)) {
+            return;
+        }
+        ClassTree classTree = (ClassTree) leaf;
+        /* header */
+        scan(new TreePath(path, classTree.getModifiers()));
+        scanAll(path, classTree.getTypeParameters());
+        if (classTree.getExtendsClause() != null) {
+            scan(new TreePath(path, classTree.getExtendsClause()));
+        }
+        scanAll(path, classTree.getImplementsClause());
+        /* members executed or needed whenever type is used */
+        for (Tree member : classTree.getMembers()) {
+            if (member instanceof BlockTree
+                    || (member instanceof VariableTree && ((VariableTree) member).getInitializer() != null)) {
+                scan(new TreePath(path, member));
+            }
+        }
+        for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            if (overridesSupertype(method, type)) {
+                reach(method);
+            }
+        }
+        if (type.getKind() == ElementKind.ENUM) {
+            /* constants are created with enum class */
+            for (Element member : type.getEnclosedElements()) {
+                if (member.getKind() == ElementKind.ENUM_CONSTANT) {
+                    reach(member);
+                }
+            }
+        }
+    }
+
+    private boolean overridesSupertype(ExecutableElement method, TypeElement type) {
+        if (method.getModifiers().contains(Modifier.STATIC)) {
+            return false;
+        }
+        Deque<TypeMirror> supertypes = new ArrayDeque<TypeMirror>(types.directSupertypes(type.asType()));
+        Set<Element> visited = new HashSet<Element>();
+        while (!supertypes.isEmpty()) {
+            TypeMirror supertype = supertypes.removeFirst();
+            if (supertype.getKind() != TypeKind.DECLARED) {
+                continue;
+            }
+            Element superElement = ((DeclaredType) supertype).asElement();
+            if (!visited.add(superElement)) {
+                continue;
+            }
+            for (ExecutableElement superMethod : ElementFilter.methodsIn(superElement.getEnclosedElements())) {
+                if (elements.overrides(method, superMethod, type)) {
+                    return true;
+                }
+            }
+            supertypes.addAll(types.directSupertypes(supertype));
+        }
+        return false;
+    }
+
+    private void scanAll(TreePath parent, Iterable<? extends Tree> trees) {
+        for (Tree tree : trees) {
+            scan(new TreePath(parent, tree));
+        }
+    }
+
+    private void scan(TreePath path) {
+        new ReferenceScanner().scan(path, null);
+    }
+
+    private void reach(Element e) {
+        if (e == null) {
+            return;
+        }
+        switch (e.getKind()) {
+            case CLASS:
+            case INTERFACE:
+            case ENUM:
+            case ANNOTATION_TYPE:
+            case METHOD:
+            case CONSTRUCTOR:
+            case FIELD:
+            case ENUM_CONSTANT:
+            case STATIC_INIT:
+            case INSTANCE_INIT:
+                break;
+            default:
+                /* records and other types of newer jdks */
+                if (!(e instanceof TypeElement)) {
+                    return;
+                }
+        }
+        if (reached.add(e)) {
+            pending.addLast(e);
+        }
+    }
+
+    private void addFile(CompilationUnitTree unit) {
+        JavaFileObject file = unit.getSourceFile();
+        if (file != null) {
+            slice.add(paths.intern(file.getName()));
+        }
+    }
+
+    /* reaches members referenced in scanned tree */
+    private class ReferenceScanner extends TreePathScanner<Void, Void> {
+
+        private void reachCurrent() {
+            reach(trees.getElement(getCurrentPath()));
+        }
+
+        @Override
+        public Void visitIdentifier(IdentifierTree node, Void p) {
+            reachCurrent();
+            return super.visitIdentifier(node, p);
+        }
+
+        @Override
+        public Void visitMemberSelect(MemberSelectTree node, Void p) {
+            reachCurrent();
+            return super.visitMemberSelect(node, p);
+        }
+
+        @Override
+        public Void visitMemberReference(MemberReferenceTree node, Void p) {
+            reachCurrent();
+            return super.visitMemberReference(node, p);
+        }
+
+        @Override
+        public Void visitNewClass(NewClassTree node, Void p) {
+            reachCurrent();
+            return super.visitNewClass(node, p);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.tools.JavaFileObject;
+
+/**
+ * Bounded cache of decoded source file contents shared by javac runs, so that
+ * sources of jck libraries are not read and decoded again by each run.
+ * Entries are keyed by file uri and modification time, least recently used
+ * entries are dropped when total size (in chars) exceeds the limit.
+ *
+ * @author zzambers
+ */
+public class SourceCache {
+
+    public static final long DEFAULT_MAX_CHARS = 32L * 1024 * 1024;
+
+    private static final SourceCache shared = new SourceCache(DEFAULT_MAX_CHARS);
+
+    private final long maxChars;
+    private final LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>(1024, 0.75f, true);
+    private long chars;
+    private long hits;
+    private long misses;
+
+    public SourceCache(long maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    public static SourceCache getShared() {
+        return shared;
+    }
+
+    private static String getKey(JavaFileObject file, boolean ignoreEncodingErrors) {
+        return file.toUri().toString() + "|" + file.getLastModified() + "|" + ignoreEncodingErrors;
+    }
+
+    /* returns content of file, reading it only when not cached */
+    public CharSequence getCharContent(JavaFileObject file, boolean ignoreEncodingErrors) throws IOException {
+        String key = getKey(file, ignoreEncodingErrors);
+        synchronized (this) {
+            String content = entries.get(key);
+            if (content != null) {
+                ++hits;
+                return content;
+            }
+            ++misses;
+        }
+        CharSequence charContent = file.getCharContent(ignoreEncodingErrors);
+        if (charContent == null) {
+            return null;
+        }
+        /* strings are immutable, so they are safe to share between javac runs */
+        String content = charContent.toString();
+        put(key, content);
+        return content;
+    }
+
+    private synchronized void put(String key, String content) {
+        if (content.length() > maxChars) {
+            return;
+        }
+        String old = entries.put(key, content);
+        if (old != null) {
+            chars -= old.length();
+        }
+        chars += content.length();
+        Iterator<Map.Entry<String, String>> it = entries.entrySet().iterator();
+        while (chars > maxChars && it.hasNext()) {
+            chars -= it.next().getValue().length();
+            it.remove();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        chars = 0;
+    }
+
+}
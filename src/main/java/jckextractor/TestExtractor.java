@@ -23,7 +23,10 @@
  */
 package jckextractor;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -37,14 +40,27 @@ import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -58,6 +74,9 @@ public class TestExtractor {
     private static final Pattern binJavaPattern = Pattern.compile("^.*bin/java.*$");
     private static final Pattern classNamePattern = Pattern.compile("[A-Za-z_$][A-Za-z0-9_$-]*[.][.A-Za-z0-9_$-]+");
     private static final Pattern javaSrcPattern = Pattern.compile("\"([A-Za-z0-9$_.-]+\\.java)\"");
+    private static final String PREBUILT_STAMP = ".prebuilt";
+    /* variable of sources.mk listing library sources */
+    static final String LIB_SOURCES_VAR = "LIB_SOURCES";
     private static final Pattern linkPatern = Pattern.compile("<[Aa]\\s+[Hh][Rr][Ee][Ff]=[\"']*([A-Za-z0-9_$-./]*)[\"']*\\s*>");
 
     public static String getPackage(Path path) throws IOException {
@@ -70,40 +89,52 @@ public class TestExtractor {
 
     /* not all src files are stored in correct directory structure according to
        their package, this method creates that structure and links source files
-       from there */
-    public static void createdFixedSrcTree(final Path src, final Path dst, final boolean recursive) throws IOException {
-        FileVisitor<Path> fv = new SimpleFileVisitor<Path>() {
+       from there, packages are read concurrently, links are created
+       afterwards in order of source paths, so that the first file wins on
+       name clash regardless of scheduling */
+    public static void createdFixedSrcTree(final Path src, final Path dst, final boolean recursive, Executor executor) throws IOException {
+        for (Map.Entry<Path, String> e : getFixedSrcTreeFiles(src, recursive, executor).entrySet()) {
+            Path linkFile = getFixedSrcTreeLink(dst, e.getKey(), e.getValue());
+            Files.createDirectories(linkFile.getParent());
+            if (!Files.exists(linkFile)) {
+                Files.createSymbolicLink(linkFile, e.getKey());
+            }
+        }
+    }
+
+    /* returns java files (sorted by path) of fixed source tree with their packages */
+    static SortedMap<Path, String> getFixedSrcTreeFiles(final Path src, final boolean recursive, Executor executor) throws IOException {
+        FileUtil.ParallelVisitor<String> visitor = new FileUtil.ParallelVisitor<String>() {
             @Override
-            public FileVisitResult preVisitDirectory(Path t, BasicFileAttributes bfa) throws IOException {
-                if (recursive == false && !t.equals(src)) {
-                    return FileVisitResult.SKIP_SUBTREE;
-                }
-                return FileVisitResult.CONTINUE;
+            public boolean preVisitDirectory(Path dir) {
+                return recursive || dir.equals(src);
             }
 
             @Override
-            public FileVisitResult visitFile(Path t, BasicFileAttributes bfa) throws IOException {
-                String filename = t.getFileName().toString();
-                if (filename.equals("module-info.java")) {
-                    return FileVisitResult.SKIP_SIBLINGS;
-                }
-                if (filename.endsWith(".java")) {
-                    String pkg = getPackage(t);
-                    if (pkg != null) {
-                        Path pkgDirRel = FileUtil.getPath(dst.getFileSystem(), pkg.split("[.]"));
-                        Path pkgDir = dst.resolve(pkgDirRel);
-                        Files.createDirectories(pkgDir);
-                        Path linkFile = pkgDir.resolve(filename);
-                        if (!Files.exists(linkFile)) {
-                            Files.createSymbolicLink(linkFile, t);
-                        }
+            public boolean visitDirectory(Path dir, List<Path> entries) {
+                for (Path entry : entries) {
+                    if (entry.getFileName().toString().equals("module-info.java")) {
+                        return false;
                     }
                 }
-                return FileVisitResult.CONTINUE;
+                return true;
             }
 
+            @Override
+            public String visitFile(Path t, BasicFileAttributes bfa) throws IOException {
+                if (t.getFileName().toString().endsWith(".java")) {
+                    return getPackage(t);
+                }
+                return null;
+            }
         };
-        Files.walkFileTree(src, fv);
+        return FileUtil.parallelWalk(src, visitor, executor);
+    }
+
+    /* returns link to java file of given package in fixed source tree dst */
+    static Path getFixedSrcTreeLink(Path dst, Path file, String pkg) {
+        Path pkgDirRel = FileUtil.getPath(dst.getFileSystem(), pkg.split("[.]"));
+        return dst.resolve(pkgDirRel).resolve(file.getFileName().toString());
     }
 
     public static void getKshClasses(List<String> clses, Path ksh) throws IOException {
@@ -115,7 +146,7 @@ public class TestExtractor {
         }
     }
 
-    public static void getHtmlLinkedFiles(Set<String> depsStrings, Path html, Options options) throws Exception {
+    public static void getHtmlLinkedFiles(IntSet deps, PathTable paths, Path html, Options options) throws Exception {
         /* good enough for now */
         Set<String> links = FileUtil.findPattern(html, linkPatern, 1);
         for (String target : links) {
@@ -131,10 +162,10 @@ public class TestExtractor {
             try {
                 FileSystem fs = options.jckDir.getFileSystem();
                 Path targetPath = FileUtil.getPath(fs, components);
-                Path targetPathFull = options.testSrcDir.resolve(targetPath);
+                Path targetPathFull = html.getParent().resolve(targetPath);
                 /* make sure file is within tck directory */
                 if (targetPathFull.normalize().startsWith(options.jckDir.normalize())) {
-                    depsStrings.add(targetPathFull.toString());
+                    deps.add(paths.intern(targetPathFull.normalize()));
                 }
             } catch (Exception e) {
                 /* invalid links are just ignored ... */
@@ -142,55 +173,32 @@ public class TestExtractor {
         }
     }
 
-    public static void extractTest(Options options) throws Exception {
-        Set<String> depsStrings = new HashSet<String>();
-        List<File> javaSrcFiles = new ArrayList<File>();
-        List<String> kshClasses = new ArrayList<String>();
-        boolean hasNatives = false;
-
-        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(options.testSrcDir)) {
+    /* scans files directly in the test directory */
+    public static TestInfo scanTestDir(Path testSrcDir, PathTable paths, Options options) throws Exception {
+        TestInfo test = new TestInfo(testSrcDir);
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(testSrcDir)) {
             for (Path p : dirStream) {
                 if (!Files.isDirectory(p)) {
                     String name = p.toString();
                     if (name.endsWith(".java")) {
-                        javaSrcFiles.add(p.toFile());
+                        test.javaSrcFiles.add(p.toFile());
                     } else if (name.endsWith(".c")) {
-                        hasNatives = true;
+                        test.hasNatives = true;
                     } else if (name.endsWith(".ksh")) {
-                        getKshClasses(kshClasses, p);
+                        getKshClasses(test.kshClasses, p);
                     } else if (name.endsWith(".html")) {
-                        getHtmlLinkedFiles(depsStrings, p, options);
+                        IntSet linked = new IntSet();
+                        getHtmlLinkedFiles(linked, paths, p, options);
+                        test.addDeps(linked, Origin.HTML);
                     }
-                    depsStrings.add(name);
+                    test.addDep(paths.intern(p), Origin.TEST);
                 }
             }
         }
-        for (Path p : options.additionalFiles) {
-            String name = p.toString();
-            if (name.endsWith(".java")) {
-                javaSrcFiles.add(p.toFile());
-            }
-            depsStrings.add(name);
-        }
-
-        Path inputSrcDir = options.jckDir.resolve("src");
-        /*
-        Path testSrcDir2 = inputSrcDir.resolve(options.jckDir.relativize(options.testSrcDir));
-        if (Files.isDirectory(testSrcDir2)) {
-            try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(options.testSrcDir)) {
-                for (Path p : dirStream) {
-                    String name = p.toString();
-                    if (!Files.isDirectory(p)) {
-                        if (name.endsWith(".java")) {
-                            javaSrcFiles.add(p.toFile());
-                        }
-                        depsStrings.add(name);
-                    }
-                }
-            }
-        }
-         */
+        return test;
+    }
 
+    public static List<File> getJckSrcDirs(Path inputSrcDir) throws IOException {
         List<File> srcDirs = new ArrayList<File>();
         srcDirs.add(inputSrcDir.toFile());
         try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(inputSrcDir)) {
@@ -203,85 +211,482 @@ public class TestExtractor {
                 }
             }
         }
+        return srcDirs;
+    }
 
-        Path p = Files.createTempDirectory("jck-extr");
+    /* returns tests in order, in which they should be dispatched to workers
+       (largest first by history), tests without directory go last */
+    static List<TestInfo> scheduleTests(List<TestInfo> tests, Options options) throws IOException {
+        if (options.history == null) {
+            return tests;
+        }
+        Map<Path, TestInfo> byDir = new HashMap<Path, TestInfo>();
+        List<TestInfo> others = new ArrayList<TestInfo>();
+        for (TestInfo test : tests) {
+            if (test.testSrcDir != null) {
+                byDir.put(test.testSrcDir, test);
+            } else {
+                others.add(test);
+            }
+        }
+        List<TestInfo> scheduled = new ArrayList<TestInfo>();
+        for (Path testSrcDir : options.history.schedule(new ArrayList<Path>(byDir.keySet()), options.ioExecutor)) {
+            scheduled.add(byDir.get(testSrcDir));
+        }
+        scheduled.addAll(others);
+        return scheduled;
+    }
+
+    /* compiles trivial class, so that loading and initialization of javac
+       is not counted to resolution time of first test of session */
+    static void warmUp(DependenciesGetter getter, Path tmpDir) throws Exception {
+        Path warmUpDir = tmpDir.resolve("warm-up");
+        Files.createDirectories(warmUpDir);
+        Path warmUpFile = warmUpDir.resolve("WarmUpExtractorClass.java");
+        List<String> lines = new ArrayList<String>();
+        lines.add("class WarmUpExtractorClass {");
+        lines.add("    String field;");
+        lines.add("}");
+        Files.write(warmUpFile, lines, Charset.defaultCharset());
         try {
-            /* test files in correct dir structure */
-            Path testSrcDirFixed = p.resolve("tests");
-            createdFixedSrcTree(options.testSrcDir, testSrcDirFixed, true);
-            Path currentDir = options.testSrcDir.getParent();
-            while (!currentDir.equals(options.jckDir)) {
-                createdFixedSrcTree(currentDir, testSrcDirFixed, false);
+            getter.getDependencies(new IntSet(), Collections.singletonList(warmUpFile.toFile()));
+        } finally {
+            FileUtil.recursiveDelete(warmUpDir);
+        }
+    }
+
+    /* finds dependencies of test's java sources and classes named in its ksh
+       scripts, dependencies of each source are also stored to sourceDeps */
+    public static void resolveTestDependencies(TestInfo test, DependenciesGetter getter, Path tmpDir) throws Exception {
+        long start = System.nanoTime();
+        List<File> javaSrcFileList = new ArrayList<File>();
+        for (File f : test.javaSrcFiles) {
+            IntSet srcDeps = new IntSet();
+            javaSrcFileList.add(f);
+            getter.getDependencies(srcDeps, javaSrcFileList);
+            javaSrcFileList.clear();
+            test.addDeps(srcDeps, Origin.JAVAC);
+            test.sourceDeps.put(getter.paths.intern(f.toPath()), srcDeps);
+        }
+
+        /* Find possible classes named in ksh scripts */
+        IntSet kshDeps = new IntSet();
+        List<String> dummyFileLines = new ArrayList<String>();
+        Path dummyClassFile = tmpDir.resolve("DummyExtractorClass.java");
+        for (String s : test.kshClasses) {
+            dummyFileLines.add("import " + s + ";");
+            dummyFileLines.add("class DummyExtractorClass {");
+            dummyFileLines.add(s + " field;");
+            dummyFileLines.add("}");
+            Files.write(dummyClassFile, dummyFileLines, Charset.defaultCharset());
+            dummyFileLines.clear();
+            javaSrcFileList.add(dummyClassFile.toFile());
+            getter.getDependencies(kshDeps, javaSrcFileList);
+            javaSrcFileList.clear();
+            Files.delete(dummyClassFile);
+        }
+        test.addDeps(kshDeps, Origin.KSH);
+        test.resolveMillis = (System.nanoTime() - start) / 1000000;
+    }
+
+    /* creates source path for tests: jck sources and fixed trees of tests
+       (and their parents) created in tmpDir */
+    static List<File> createSourcePath(List<TestInfo> tests, Path p, Options options) throws IOException {
+        LiveJckIndex liveIndex = options.liveIndex;
+        if (liveIndex != null) {
+            liveIndex.sync();
+        }
+        Path inputSrcDir = options.jckDir.resolve("src");
+        List<File> srcDirs = liveIndex != null ? liveIndex.getJckSrcDirs() : getJckSrcDirs(inputSrcDir);
+
+        Path testSrcDirFixed = p.resolve("tests");
+        createFixedTestTrees(tests, testSrcDirFixed, options);
+        srcDirs.add(testSrcDirFixed.toFile());
+
+        if (liveIndex != null) {
+            Path srcTestDirFixed = liveIndex.getSrcTestsFixed();
+            if (srcTestDirFixed != null) {
+                srcDirs.add(srcTestDirFixed.toFile());
+            }
+            return srcDirs;
+        }
+
+        /* files from src/test in correct dir structure */
+        Path inputSrcTestDir = inputSrcDir.resolve("tests");
+        if (Files.isDirectory(inputSrcTestDir)) {
+            Path srcTestDirFixed = p.resolve("src-tests");
+            Files.createDirectory(srcTestDirFixed);
+            createdFixedSrcTree(inputSrcTestDir, srcTestDirFixed, true, options.ioExecutor);
+            srcDirs.add(srcTestDirFixed.toFile());
+        }
+        return srcDirs;
+    }
+
+    /* creates fixed trees of tests (and their parents) in testSrcDirFixed,
+       test directories first, so that their files take precedence over
+       files in parents */
+    static void createFixedTestTrees(List<TestInfo> tests, Path testSrcDirFixed, Options options) throws IOException {
+        for (TestInfo test : tests) {
+            if (test.testSrcDir != null) {
+                createdFixedSrcTree(test.testSrcDir, testSrcDirFixed, true, options.ioExecutor);
+            }
+        }
+        Set<Path> visitedParents = new HashSet<Path>();
+        for (TestInfo test : tests) {
+            if (test.testSrcDir == null) {
+                continue;
+            }
+            Path currentDir = test.testSrcDir.getParent();
+            while (!currentDir.equals(options.jckDir) && visitedParents.add(currentDir)) {
+                createdFixedSrcTree(currentDir, testSrcDirFixed, false, options.ioExecutor);
                 currentDir = currentDir.getParent();
             }
-            srcDirs.add(testSrcDirFixed.toFile());
+        }
+    }
 
-            /* files from src/test in correct dir structure */
-            Path inputSrcTestDir = inputSrcDir.resolve("tests");
-            if (Files.isDirectory(inputSrcTestDir)) {
-                Path srcTestDirFixed = p.resolve("src-tests");
-                Files.createDirectory(srcTestDirFixed);
-                createdFixedSrcTree(inputSrcTestDir, srcTestDirFixed, true);
-                srcDirs.add(srcTestDirFixed.toFile());
+    /* jck sources are indexed only once per run, indexes of javac sessions
+       copy their packages and only scan fixed trees */
+    static PackageIndex createPackageIndex(List<File> srcDirs, Options options) throws IOException {
+        if (options.liveIndex != null) {
+            return options.liveIndex.createPackageIndex(srcDirs);
+        }
+        PackageIndex jckIndex;
+        synchronized (options) {
+            if (options.jckIndex == null) {
+                options.jckIndex = new PackageIndex(getJckSrcDirs(options.jckDir.resolve("src")), options.ioExecutor);
             }
+            jckIndex = options.jckIndex;
+        }
+        return new PackageIndex(jckIndex, srcDirs, options.ioExecutor);
+    }
+
+    /* resolves dependencies of scanned tests, javac is run with source path
+       containing jck sources and fixed trees of tests (and their parents) */
+    public static void findDependencies(List<TestInfo> tests, PathTable paths, Options options) throws Exception {
+        Path p = Files.createTempDirectory("jck-extr");
+        try {
+            resolveDependencies(tests, paths, options, p);
+            convertSymbolicLinks(tests, paths, options, p);
+        } finally {
+            FileUtil.recursiveDelete(p);
+        }
+    }
 
-            /* Find dependencies*/
-            List<File> javaSrcFileList = new ArrayList<File>();
-            for (File f : javaSrcFiles) {
-                javaSrcFileList.add(f);
-                DependenciesGetter.getDependencies(depsStrings, javaSrcFileList, srcDirs);
-                javaSrcFileList.clear();
-            }
-
-            /* Find possible classes named in ksh scripts */
-            List<String> dummyFileLines = new ArrayList<String>();
-            Path dummyClassFile = p.resolve("DummyExtractorClass.java");
-            for (String s : kshClasses) {
-                dummyFileLines.add("import " + s + ";");
-                dummyFileLines.add("class DummyExtractorClass {");
-                dummyFileLines.add(s + " field;");
-                dummyFileLines.add("}");
-                Files.write(dummyClassFile, dummyFileLines, Charset.defaultCharset());
-                dummyFileLines.clear();
-                javaSrcFileList.add(dummyClassFile.toFile());
-                DependenciesGetter.getDependencies(depsStrings, javaSrcFileList, srcDirs);
-                javaSrcFileList.clear();
-                Files.delete(dummyClassFile);
-            }
-
-            /* Convert symbolic links */
-            Set<String> set2 = new HashSet<String>();
-            FileSystem fs = options.jckDir.getFileSystem();
-            for (String depString : depsStrings) {
-                Path srcFile = fs.getPath(depString);
-                if (Files.isSymbolicLink(srcFile)) {
-                    srcFile = Files.readSymbolicLink(srcFile);
+    /* resolves dependencies using fixed trees created in tmpDir, found
+       dependencies may be symbolic links in tmpDir, until converted */
+    static void resolveDependencies(List<TestInfo> tests, PathTable paths, Options options, Path p) throws Exception {
+        List<File> srcDirs = createSourcePath(tests, p, options);
+
+        /* Find dependencies, all tests share single javac file manager */
+        PackageIndex packageIndex = createPackageIndex(srcDirs, options);
+        try (DependenciesGetter getter = new DependenciesGetter(srcDirs, paths, SourceCache.getShared(), packageIndex)) {
+            warmUp(getter, p);
+            for (TestInfo test : tests) {
+                resolveTestDependencies(test, getter, p);
+            }
+        }
+    }
+
+    /* converts symbolic links (only fixed trees in tmpDir and live index
+       contain them) to files they point to */
+    static void convertSymbolicLinks(List<TestInfo> tests, PathTable paths, Options options, Path p) throws IOException {
+        int[] linksDir = getLinksDirs(paths, options, p);
+        for (TestInfo test : tests) {
+            test.deps = resolveSymbolicLinks(paths, test.deps, linksDir);
+            for (int i = 0; i < test.originDeps.length; ++i) {
+                test.originDeps[i] = resolveSymbolicLinks(paths, test.originDeps[i], linksDir);
+            }
+            for (Map.Entry<Integer, IntSet> e : test.sourceDeps.entrySet()) {
+                e.setValue(resolveSymbolicLinks(paths, e.getValue(), linksDir));
+            }
+        }
+    }
+
+    /* finds member level slice (files declaring members reachable from test
+       sources) of each test, javac session is set up as in findDependencies */
+    public static Map<TestInfo, IntSet> sliceTests(List<TestInfo> tests, PathTable paths, Options options) throws Exception {
+        Map<TestInfo, IntSet> slices = new LinkedHashMap<TestInfo, IntSet>();
+        Path p = Files.createTempDirectory("jck-extr");
+        try {
+            List<File> srcDirs = createSourcePath(tests, p, options);
+            PackageIndex packageIndex = createPackageIndex(srcDirs, options);
+            int[] linksDir = getLinksDirs(paths, options, p);
+            try (DependenciesGetter getter = new DependenciesGetter(srcDirs, paths, SourceCache.getShared(), packageIndex)) {
+                for (TestInfo test : tests) {
+                    if (test.testSrcDir == null) {
+                        continue;
+                    }
+                    /* test sources are keys of sourceDeps (also for cached tests) */
+                    List<File> testSources = new ArrayList<File>();
+                    for (int src : test.sourceDeps.keySet()) {
+                        testSources.add(paths.getPath(src).toFile());
+                    }
+                    Collections.sort(testSources);
+                    IntSet slice = new IntSet();
+                    List<File> javaSrcFileList = new ArrayList<File>();
+                    for (File f : testSources) {
+                        javaSrcFileList.add(f);
+                        Slicer.slice(getter, javaSrcFileList, slice);
+                        javaSrcFileList.clear();
+                    }
+                    slices.put(test, resolveSymbolicLinks(paths, slice, linksDir));
                 }
-                set2.add(srcFile.toString());
             }
-            depsStrings = set2;
         } finally {
             FileUtil.recursiveDelete(p);
         }
+        return slices;
+    }
 
-        FileSystem fs = options.jckDir.getFileSystem();
-        for (String depString : depsStrings) {
-            Path srcFile = fs.getPath(depString);
-            Path destFile = options.outputDir.resolve(options.jckDir.relativize(srcFile));
-            Path destDir = destFile.getParent();
-            Files.createDirectories(destDir);
-            Files.copy(srcFile, destFile, StandardCopyOption.COPY_ATTRIBUTES);
+    /* prints sources needed by members reachable from each test, compared to
+       all sources read by javac */
+    public static void printSliceReport(Map<TestInfo, IntSet> slices, PathTable paths, Options options) {
+        StringBuilder sb = new StringBuilder();
+        Path jckTestsDir = options.jckDir.resolve("tests");
+        for (Map.Entry<TestInfo, IntSet> e : slices.entrySet()) {
+            IntSet javacDeps = new IntSet();
+            for (Map.Entry<Integer, IntSet> srcDeps : e.getKey().sourceDeps.entrySet()) {
+                javacDeps.add(srcDeps.getKey());
+                javacDeps.addAll(srcDeps.getValue());
+            }
+            List<String> files = new ArrayList<String>();
+            for (int id : e.getValue().toArray()) {
+                files.add(options.jckDir.relativize(paths.getPath(id)).toString());
+            }
+            Collections.sort(files);
+            sb.append(jckTestsDir.relativize(e.getKey().testSrcDir)).append(": ")
+                    .append(files.size()).append(" of ").append(javacDeps.size())
+                    .append(" source(s) needed\n");
+            for (String file : files) {
+                sb.append("  ").append(file).append('\n');
+            }
+        }
+        System.out.print(sb);
+    }
+
+    /* returns test from cache or scanned test (with dependencies not resolved yet) */
+    static TestInfo scanTest(Path testSrcDir, PathTable paths, DependencyCache cache, Options options) throws Exception {
+        String key = cache != null ? cache.getKey(testSrcDir, options.additionalFiles, options.ioExecutor) : null;
+        TestInfo test = cache != null ? cache.get(key, testSrcDir) : null;
+        if (test == null) {
+            test = scanTestDir(testSrcDir, paths, options);
+            test.cacheKey = key;
+        }
+        return test;
+    }
+
+    static void addAdditionalFiles(TestInfo test, PathTable paths, Options options) {
+        for (Path p : options.additionalFiles) {
+            if (p.toString().endsWith(".java")) {
+                test.javaSrcFiles.add(p.toFile());
+            }
+            test.addDep(paths.intern(p), Origin.ADDITIONAL);
+        }
+    }
+
+    /* finds tests and their dependencies, cached tests are not resolved */
+    public static Discovery discover(final PathTable paths, final DependencyCache cache, final Options options) throws Exception {
+        long start = System.nanoTime();
+        Discovery discovery = new Discovery();
+        List<TestInfo> tests = discovery.tests;
+        List<TestInfo> unresolved = new ArrayList<TestInfo>();
+
+        /* tests are scanned (html links read etc.) concurrently */
+        final TestInfo[] scannedTests = new TestInfo[options.testSrcDirs.size()];
+        List<Callable<Void>> scanTasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < scannedTests.length; ++i) {
+            final int index = i;
+            final Path testSrcDir = options.testSrcDirs.get(i);
+            scanTasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    scannedTests[index] = scanTest(testSrcDir, paths, cache, options);
+                    return null;
+                }
+            });
+        }
+        FileUtil.runAll(scanTasks, options.ioExecutor);
+        for (TestInfo test : scannedTests) {
+            if (!test.cached) {
+                unresolved.add(test);
+            }
+            tests.add(test);
+        }
+        /* additional files are handled as one more test */
+        String additionalKey = cache != null ? cache.getKey(null, options.additionalFiles, options.ioExecutor) : null;
+        TestInfo additional = cache != null ? cache.get(additionalKey, null) : null;
+        if (additional == null) {
+            additional = new TestInfo(null);
+            addAdditionalFiles(additional, paths, options);
+            additional.cacheKey = additionalKey;
+            unresolved.add(additional);
+        }
+        tests.add(additional);
+        long scanned = System.nanoTime();
+        discovery.scanMillis = (scanned - start) / 1000000;
+
+        if (!unresolved.isEmpty()) {
+            if (options.workers > 0) {
+                try (WorkerPool pool = new WorkerPool(options, paths)) {
+                    pool.resolve(scheduleTests(unresolved, options));
+                }
+            } else {
+                findDependencies(unresolved, paths, options);
+            }
+            if (options.history != null) {
+                for (TestInfo test : unresolved) {
+                    options.history.record(test, paths);
+                }
+            }
+            if (cache != null) {
+                for (TestInfo test : unresolved) {
+                    cache.put(test.cacheKey, test);
+                }
+                cache.evict();
+            }
+        }
+        discovery.resolveMillis = (System.nanoTime() - scanned) / 1000000;
+        return discovery;
+    }
+
+    public static void extractTest(Options options) throws Exception {
+        if (options.shardCount > 0) {
+            options.testSrcDirs = Shards.select(options.testSrcDirs, options.shardIndex, options.shardCount, options.ioExecutor);
+            /* scripts of shard run only its tests */
+            Path jckTestsDir = options.jckDir.resolve("tests");
+            options.testNameArgs.clear();
+            for (Path testSrcDir : options.testSrcDirs) {
+                options.testNameArgs.add(ReverseIndex.toIndexPath(jckTestsDir, testSrcDir));
+            }
+        }
+        if (options.historyFile != null) {
+            /* tests are scheduled only when dispatched (batch, workers),
+               merged session keeps order of args, as it decides files of
+               which test take precedence in fixed tree */
+            options.history = History.load(options.historyFile, options.jckDir);
+        }
+        if (options.watch) {
+            try (LiveJckIndex liveIndex = new LiveJckIndex(options.jckDir, options.ioExecutor)) {
+                options.liveIndex = liveIndex;
+                extractTests(options);
+            } finally {
+                options.liveIndex = null;
+            }
+        } else {
+            extractTests(options);
+        }
+        if (options.history != null) {
+            options.history.save();
+            System.err.println(options.history.getSummary());
+        }
+        if (!options.failedTests.isEmpty()) {
+            System.err.println("ERR: Failed tests:");
+            for (String failedTest : options.failedTests) {
+                System.err.println("  " + failedTest);
+            }
+            throw new Exception("Extraction of " + options.failedTests.size() + " test(s) failed");
+        }
+    }
+
+    private static void extractTests(Options options) throws Exception {
+        long start = System.nanoTime();
+        PathTable paths = new PathTable(options.jckDir.getFileSystem());
+        DependencyCache cache = options.cacheDir != null ? new DependencyCache(options.cacheDir, options.cacheSize, options.jckDir, paths) : null;
+        if (options.batch) {
+            options.failedTests.addAll(new BatchPipeline(paths, cache, options).run());
+            if (options.shardCount > 0) {
+                Shards.write(Shards.createBatchManifest(options, (System.nanoTime() - start) / 1000000), options.outputDir);
+            }
+            if (options.stats) {
+                printStats(cache, options);
+            }
+            return;
+        }
+        Discovery discovery = discover(paths, cache, options);
+        List<TestInfo> tests = discovery.tests;
+        if (options.buildIndex != null) {
+            ReverseIndex.write(options.buildIndex, tests, paths, options.jckDir);
+            if (options.stats) {
+                printStats(cache, options);
+            }
+            return;
+        }
+        if (options.slice) {
+            printSliceReport(sliceTests(tests, paths, options), paths, options);
+            if (options.stats) {
+                printStats(cache, options);
+            }
+            return;
+        }
+        if (options.plan) {
+            Plan plan = Plan.create(discovery, paths, options);
+            plan.totalMillis = (System.nanoTime() - start) / 1000000;
+            plan.print(System.out);
+            if (options.stats) {
+                printStats(cache, options);
+            }
+            return;
+        }
+
+        copyDependencies(tests, paths, options, options.outputDir);
+        renderScripts(tests, paths, options, options.outputDir, getTestNames(options));
+        if (options.shardCount > 0) {
+            Plan plan = Plan.create(discovery, paths, options);
+            plan.totalMillis = (System.nanoTime() - start) / 1000000;
+            Shards.write(Shards.createManifest(plan, options), options.outputDir);
+        }
+
+        if (options.stats) {
+            printStats(cache, options);
+        }
+    }
+
+    /* copies dependencies of tests (and native sources, if needed) to outputDir */
+    static void copyDependencies(List<TestInfo> tests, PathTable paths, Options options, Path outputDir) throws IOException {
+        IntSet deps = new IntSet();
+        boolean hasNatives = false;
+        for (TestInfo test : tests) {
+            deps.addAll(test.deps);
+            hasNatives |= test.hasNatives;
+        }
+
+        Map<Path, Path> files = new HashMap<Path, Path>();
+        for (int dep : deps.toArray()) {
+            Path srcFile = paths.getPath(dep);
+            files.put(srcFile, outputDir.resolve(options.jckDir.relativize(srcFile)));
+        }
+        CopyEngine.copyFiles(files, options.ioExecutor, options.copyThreads);
+
+        if (options.prebuiltClasses) {
+            copyPrebuiltClasses(deps, paths, options, outputDir);
         }
 
         if (hasNatives) {
-            Path outputSrcDir = options.outputDir.resolve("src");
-            Path inputSrcShareDir = inputSrcDir.resolve("share");
+            Path outputSrcDir = outputDir.resolve("src");
+            Path inputSrcShareDir = options.jckDir.resolve("src").resolve("share");
             Files.createDirectories(outputSrcDir);
-            FileUtil.recursiveCopy(inputSrcShareDir, outputSrcDir);
+            FileUtil.recursiveCopy(inputSrcShareDir, outputSrcDir, options.ioExecutor, options.copyThreads);
+        }
+    }
+
+    /* writes Makefile, sources.mk and tryRun.sh to outputDir */
+    static void renderScripts(List<TestInfo> tests, PathTable paths, Options options, Path outputDir, String testNames) throws IOException {
+        /* sources read by javac when compiling each of the test's sources */
+        Map<Integer, IntSet> sourceDeps = new HashMap<Integer, IntSet>();
+        IntSet deps = new IntSet();
+        for (TestInfo test : tests) {
+            sourceDeps.putAll(test.sourceDeps);
+            deps.addAll(test.deps);
         }
 
+        writeSourcesMakefile(sourceDeps, deps, paths, options, outputDir);
+        writeRunScripts(outputDir, testNames);
+    }
+
+    /* writes Makefile and tryRun.sh (running given tests) to outputDir */
+    static void writeRunScripts(Path outputDir, String testNames) throws IOException {
         try (InputStream is = TestExtractor.class.getClassLoader().getResourceAsStream("jckextractor/res/TestMakefile.mk")) {
-            Files.copy(is, options.outputDir.resolve("Makefile"));
+            Files.copy(is, outputDir.resolve("Makefile"));
         }
 
         StringBuilder sb = new StringBuilder();
@@ -295,7 +700,7 @@ public class TestExtractor {
             }
         }
         String tryRun = sb.toString()
-                .replace("{TEST}", options.testNameArg)
+                .replace("{TEST}", testNames)
                 .replace("{DATE}", new Date().toString());
         if (System.getenv("JENKINS_URL") == null){
             tryRun = tryRun.replaceAll(".*\\{JENKINS_URL\\}.*", "");
@@ -311,8 +716,344 @@ public class TestExtractor {
         } else {
             tryRun = tryRun.replace("={JAVA_TOOL_OPTIONS}", "='" + jto + "'").replace("#{JAVA_TOOL_OPTIONS}", "export JAVA_TOOL_OPTIONS='" + jto + "'");
         }
-        Files.write(options.outputDir.resolve("tryRun.sh"), tryRun.getBytes(StandardCharsets.UTF_8));
+        Files.write(outputDir.resolve("tryRun.sh"), tryRun.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static void printStats(DependencyCache cache, Options options) {
+        SourceCache sourceCache = SourceCache.getShared();
+        System.err.println("source cache: hits " + sourceCache.getHits() + ", misses " + sourceCache.getMisses());
+        if (options.liveIndex != null) {
+            System.err.println("live index: events " + options.liveIndex.getEvents() + ", rebuilds " + options.liveIndex.getRebuilds());
+        }
+        if (cache != null) {
+            System.err.println("dependency cache: hits " + cache.getHits() + ", misses " + cache.getMisses());
+        }
+    }
+
+    /* copies classes compiled from extracted sources (including nested and
+       secondary top-level ones, found by SourceFile attribute) from jck's
+       classes directory, generated scripts then only recompile sources
+       newer than the stamp file (or without any prebuilt class) */
+    public static void copyPrebuiltClasses(IntSet deps, PathTable paths, Options options, Path outputDir) throws IOException {
+        Path inputClassesDir = options.jckDir.resolve("classes");
+        Path outputClassesDir = outputDir.resolve("classes");
+        FileSystem fs = options.jckDir.getFileSystem();
+        /* package dir -> source file name -> classes compiled from it */
+        Map<Path, Map<String, List<Path>>> pkgClasses = new HashMap<Path, Map<String, List<Path>>>();
+        List<Path> compiled = new ArrayList<Path>();
+        for (int dep : deps.toArray()) {
+            String fileName = paths.getName(dep);
+            if (!fileName.endsWith(".java")) {
+                continue;
+            }
+            Path srcFile = paths.getPath(dep);
+            String pkg = getPackage(srcFile);
+            Path pkgDirRel = pkg != null ? FileUtil.getPath(fs, pkg.split("[.]")) : fs.getPath("");
+            Map<String, List<Path>> sourceClasses = pkgClasses.get(pkgDirRel);
+            if (sourceClasses == null) {
+                sourceClasses = getSourceClasses(inputClassesDir.resolve(pkgDirRel));
+                pkgClasses.put(pkgDirRel, sourceClasses);
+            }
+            List<Path> classFiles = sourceClasses.get(fileName);
+            if (classFiles == null) {
+                /* not compiled by jck, left to scripts */
+                continue;
+            }
+            Path outputPkgDir = outputClassesDir.resolve(pkgDirRel);
+            for (Path classFile : classFiles) {
+                Path destFile = outputPkgDir.resolve(classFile.getFileName().toString());
+                if (!Files.exists(destFile)) {
+                    Files.createDirectories(outputPkgDir);
+                    Files.copy(classFile, destFile, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+            }
+            compiled.add(srcFile);
+        }
+        Files.createDirectories(outputClassesDir);
+        Files.write(outputClassesDir.resolve(PREBUILT_STAMP), new byte[0]);
+        /* mark extracted sources as compiled for the Makefile */
+        for (Path srcFile : compiled) {
+            Path stampFile = getStampFile(options, outputDir, srcFile);
+            Files.createDirectories(stampFile.getParent());
+            Files.write(stampFile, new byte[0]);
+        }
+    }
+
+    /* groups classes of package dir by sources they were compiled from,
+       classes without SourceFile attribute (-g:none) go by their name */
+    private static Map<String, List<Path>> getSourceClasses(Path pkgDir) throws IOException {
+        Map<String, List<Path>> sourceClasses = new HashMap<String, List<Path>>();
+        if (!Files.isDirectory(pkgDir)) {
+            return sourceClasses;
+        }
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(pkgDir, "*.class")) {
+            for (Path classFile : dirStream) {
+                String source = getSourceFile(classFile);
+                if (source == null) {
+                    String name = classFile.getFileName().toString();
+                    int end = name.indexOf('$');
+                    source = name.substring(0, end >= 0 ? end : name.length() - 6) + ".java";
+                }
+                List<Path> classFiles = sourceClasses.get(source);
+                if (classFiles == null) {
+                    classFiles = new ArrayList<Path>();
+                    sourceClasses.put(source, classFiles);
+                }
+                classFiles.add(classFile);
+            }
+        }
+        return sourceClasses;
+    }
+
+    /* reads SourceFile attribute of class file, null if it has none or file
+       is not valid class file */
+    private static String getSourceFile(Path classFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(classFile)))) {
+            if (in.readInt() != 0xCAFEBABE) {
+                return null;
+            }
+            skip(in, 4);
+            int cpCount = in.readUnsignedShort();
+            String[] utf8 = new String[cpCount];
+            for (int i = 1; i < cpCount; ++i) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case 1:
+                        utf8[i] = in.readUTF();
+                        break;
+                    case 7: case 8: case 16: case 19: case 20:
+                        skip(in, 2);
+                        break;
+                    case 15:
+                        skip(in, 3);
+                        break;
+                    case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                        skip(in, 4);
+                        break;
+                    case 5: case 6:
+                        /* takes two entries */
+                        skip(in, 8);
+                        ++i;
+                        break;
+                    default:
+                        return null;
+                }
+            }
+            /* access flags, this, super */
+            skip(in, 6);
+            skip(in, 2 * in.readUnsignedShort());
+            /* fields, methods */
+            for (int k = 0; k < 2; ++k) {
+                int count = in.readUnsignedShort();
+                for (int i = 0; i < count; ++i) {
+                    skip(in, 6);
+                    skipAttributes(in);
+                }
+            }
+            int attrCount = in.readUnsignedShort();
+            for (int i = 0; i < attrCount; ++i) {
+                int nameIndex = in.readUnsignedShort();
+                int length = in.readInt();
+                if ("SourceFile".equals(utf8[nameIndex])) {
+                    return utf8[in.readUnsignedShort()];
+                }
+                skip(in, length);
+            }
+            return null;
+        } catch (EOFException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static void skipAttributes(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; ++i) {
+            skip(in, 2);
+            skip(in, in.readInt());
+        }
+    }
+
+    /* skipBytes may skip less (e.g. at end of buffer) */
+    private static void skip(DataInputStream in, int n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0) {
+                in.readByte();
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+
+    private static Path getStampFile(Options options, Path outputDir, Path srcFile) {
+        Path rel = options.jckDir.relativize(srcFile);
+        return outputDir.resolve("classes").resolve(".stamps").resolve(rel + ".stamp");
+    }
+
+    private static String toMakePath(Options options, PathTable paths, int id) {
+        Path rel = options.jckDir.relativize(paths.getPath(id));
+        return rel.toString().replace(File.separatorChar, '/');
+    }
+
+    /* writes rules making stamp of each test source depend on sources javac
+       read while compiling it, so that Makefile recompiles only changed
+       sources and their dependents, other extracted sources (libraries,
+       classes named by ksh scripts) are not compiled on their own, so
+       their dependencies are unknown and they are recompiled together */
+    public static void writeSourcesMakefile(Map<Integer, IntSet> sourceDeps, IntSet deps, PathTable paths, Options options, Path outputDir) throws IOException {
+        SortedSet<String> libSources = new TreeSet<String>();
+        for (int dep : deps.toArray()) {
+            if (paths.getName(dep).endsWith(".java") && !sourceDeps.containsKey(dep)
+                    && paths.getPath(dep).startsWith(options.jckDir)) {
+                libSources.add(toMakePath(options, paths, dep));
+            }
+        }
+        SortedMap<String, SortedSet<String>> rules = new TreeMap<String, SortedSet<String>>();
+        for (Map.Entry<Integer, IntSet> e : sourceDeps.entrySet()) {
+            int src = e.getKey();
+            SortedSet<String> srcDeps = new TreeSet<String>();
+            for (int dep : e.getValue().toArray()) {
+                if (dep != src) {
+                    srcDeps.add(toMakePath(options, paths, dep));
+                }
+            }
+            rules.put(toMakePath(options, paths, src), srcDeps);
+        }
+        writeSourcesMakefile(rules, libSources, outputDir);
+    }
+
+    /* writes sources.mk from rules (source -> sources it depends on, paths
+       relative to output dir) and library sources */
+    static void writeSourcesMakefile(SortedMap<String, SortedSet<String>> rules, SortedSet<String> libSources, Path outputDir) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        lines.add("# generated by jck-test-extractor, dependencies of test sources");
+        for (Map.Entry<String, SortedSet<String>> e : rules.entrySet()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("classes/.stamps/").append(e.getKey()).append(".stamp:");
+            for (String dep : e.getValue()) {
+                sb.append(" ").append(dep);
+            }
+            lines.add(sb.toString());
+        }
+        if (!libSources.isEmpty()) {
+            lines.add("# other sources are all recompiled, when any of them changes");
+            StringBuilder sb = new StringBuilder(LIB_SOURCES_VAR + " :=");
+            for (String libSource : libSources) {
+                sb.append(" ").append(libSource);
+            }
+            lines.add(sb.toString());
+            lines.add("$(" + LIB_SOURCES_VAR + ":%=classes/.stamps/%.stamp): $(" + LIB_SOURCES_VAR + ")");
+        }
+        Files.write(outputDir.resolve("sources.mk"), lines, StandardCharsets.UTF_8);
+    }
+
+    private static int[] getLinksDirs(PathTable paths, Options options, Path p) {
+        if (options.liveIndex != null) {
+            return new int[]{paths.intern(p), paths.intern(options.liveIndex.getLinksDir())};
+        }
+        return new int[]{paths.intern(p)};
+    }
+
+    private static IntSet resolveSymbolicLinks(PathTable paths, IntSet ids, int[] linksDirs) throws IOException {
+        IntSet resolved = new IntSet(ids.size());
+        for (int id : ids.toArray()) {
+            for (int linksDir : linksDirs) {
+                if (paths.isAncestor(linksDir, id)) {
+                    Path srcFile = paths.getPath(id);
+                    if (Files.isSymbolicLink(srcFile)) {
+                        id = paths.intern(Files.readSymbolicLink(srcFile));
+                    }
+                    break;
+                }
+            }
+            resolved.add(id);
+        }
+        return resolved;
+    }
+
+    private static String getTestNames(Options options) {
+        StringBuilder sb = new StringBuilder();
+        for (String testNameArg : options.testNameArgs) {
+            if (sb.length() > 0) {
+                sb.append(" ");
+            }
+            sb.append(testNameArg);
+        }
+        return sb.toString();
+    }
+
+    private static boolean isGlob(String s) {
+        return s.indexOf('*') >= 0 || s.indexOf('?') >= 0 || s.indexOf('[') >= 0 || s.indexOf('{') >= 0;
+    }
+
+    /* returns test directory (relative to tests dir, separated by "/")
+       for test name, which may also point to html file of the test */
+    static String getTestDirName(String testName) {
+        String testUrl = testName;
+        int hashIndex = testUrl.lastIndexOf('#');
+        if (hashIndex > 0) {
+            testUrl = testUrl.substring(0, hashIndex);
+        }
+        if (testUrl.startsWith("/")) {
+            testUrl = testUrl.substring(1);
+        }
+        if (testUrl.startsWith("tests/")) {
+            testUrl = testUrl.substring(6);
+        }
+        if (testUrl.endsWith(".html")) {
+            int slashIndex = testUrl.lastIndexOf('/');
+            if (slashIndex > 0) {
+                testUrl = testUrl.substring(0, slashIndex);
+            }
+        }
+        return testUrl;
+    }
 
+    /* finds test directories matching test name, name may be glob pattern
+       (e.g. api/java_lang/SecurityManager/**), in that case all matching
+       directories, which directly contain some files, are returned */
+    public static List<Path> findTestDirs(Path jckTestsDir, String testName) throws IOException {
+        final List<Path> testDirs = new ArrayList<Path>();
+        final FileSystem fs = jckTestsDir.getFileSystem();
+        String testDirName = getTestDirName(testName);
+        if (!isGlob(testDirName)) {
+            Path testSrcDir = jckTestsDir.resolve(testDirName.replace("/", fs.getSeparator()));
+            if (Files.isDirectory(testSrcDir)) {
+                testDirs.add(testSrcDir.toAbsolutePath());
+            }
+            return testDirs;
+        }
+        /* walk only part of the tree not containing wildcards */
+        String[] components = testDirName.split("/");
+        Path walkRoot = jckTestsDir;
+        for (String component : components) {
+            if (isGlob(component)) {
+                break;
+            }
+            walkRoot = walkRoot.resolve(component);
+        }
+        if (!Files.isDirectory(walkRoot)) {
+            return testDirs;
+        }
+        final Path testsDir = jckTestsDir;
+        final PathMatcher matcher = fs.getPathMatcher("glob:" + testDirName.replace("/", fs.getSeparator()));
+        final Set<Path> matchedDirs = new LinkedHashSet<Path>();
+        FileVisitor<Path> fv = new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path t, BasicFileAttributes bfa) throws IOException {
+                Path dir = t.getParent();
+                if (!matchedDirs.contains(dir) && matcher.matches(testsDir.relativize(dir))) {
+                    matchedDirs.add(dir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        };
+        Files.walkFileTree(walkRoot, fv);
+        for (Path dir : matchedDirs) {
+            testDirs.add(dir.toAbsolutePath());
+        }
+        Collections.sort(testDirs);
+        return testDirs;
     }
 
     private static CharSequence envWithDefault(String key) {
@@ -328,14 +1069,44 @@ public class TestExtractor {
 
         String jckDirArg;
         String outputDirArg;
-        String testNameArg;
+        List<String> testNameArgs = new ArrayList<String>();
+        String testListArg;
         Set<String> additionalFilesArgs = new HashSet();
+        boolean prebuiltClasses;
+        boolean stats;
+        boolean plan;
+        boolean slice;
+        boolean batch;
+        boolean watch;
+        int queueSize = 2;
+        int workers;
+        String workerHeap;
+        long workerTimeout = 600;
+        int workerRecycle = 100;
+        int shardIndex;
+        int shardCount;
+        List<Path> mergeDirs = new ArrayList<Path>();
+        Path buildIndex;
+        Path index;
+        List<String> affectedByArgs = new ArrayList<String>();
+        Path cacheDir;
+        Path historyFile;
+        long cacheSize = 512L * 1024 * 1024;
+        int ioThreads = IoExecutors.getDefaultThreads();
+        int copyThreads;
 
         Path jckDir;
         Path outputDir;
-        Path testSrcDir;
-        Path htmlFile;
+        /* executor for I/O tasks shared by whole run */
+        ExecutorService ioExecutor;
+        LiveJckIndex liveIndex;
+        /* index of jck sources, built once per run */
+        PackageIndex jckIndex;
+        History history;
+        List<Path> testSrcDirs = new ArrayList<Path>();
         Set<Path> additionalFiles = new HashSet();
+        /* tests failed in batch (with reasons) */
+        List<String> failedTests = new ArrayList<String>();
     }
 
     public static void printHelp() {
@@ -344,7 +1115,52 @@ public class TestExtractor {
                 + "  --help                prints this help\n"
                 + "  --jck-dir [DIR]       directory with unpacked jck (unpacked with -i shell_scripts)\n"
                 + "  --output-dir [DIR]    directory where to place extracted test\n"
-                + "  --test [TEST]         name of the test to extract\n";
+                + "  --test [TEST]         name of the test to extract, may be repeated, may be glob\n"
+                + "                        (e.g. api/java_lang/SecurityManager/**), all tests are\n"
+                + "                        extracted together to single output\n"
+                + "  --test-list [FILE]    file with names of tests to extract (one per line)\n"
+                + "  --batch [FILE]        file with names of tests (one per line), each test is\n"
+                + "                        extracted to its own subdirectory of output-dir, steps\n"
+                + "                        of different tests run concurrently (pipelined)\n"
+                + "  --queue-size [N]      capacity of queues between pipeline steps in batch mode,\n"
+                + "                        default: 2\n"
+                + "  --watch               keep index of jck src updated by file system events, instead\n"
+                + "                        of rescanning it for every resolution (useful with --batch,\n"
+                + "                        can not be combined with --workers)\n"
+                + "  --workers [N]         resolve dependencies in N worker JVMs (isolates javac\n"
+                + "                        memory and failures), default: 0 (in this JVM)\n"
+                + "  --worker-heap [SIZE]  max heap of worker JVM (e.g. 512m)\n"
+                + "  --worker-timeout [S]  kill worker, when test takes longer, default: 600\n"
+                + "  --worker-recycle [N]  restart worker after N tests, default: 100\n"
+                + "  --shard [I/N]         extract only I-th (1 based) of N parts of tests (parts are\n"
+                + "                        deterministic and balanced by size of tests), manifest\n"
+                + "                        and stats of the part are written to output-dir\n"
+                + "  --merge [DIR]...      merge outputs of shards to output-dir (files common\n"
+                + "                        to several shards are copied once), jck-dir is not needed\n"
+                + "  --io-threads [N]      number of threads used for scanning and copying files,\n"
+                + "                        use higher values for jck on network file systems\n"
+                + "  --copy-threads [N]    number of threads copying files to output-dir,\n"
+                + "                        default: same as io-threads\n"
+                + "  --cache-dir [DIR]     cache dependencies of tests in directory, cached tests\n"
+                + "                        are not resolved again unless test or jck changes\n"
+                + "  --cache-size [MB]     maximal size of cache (least recently used entries\n"
+                + "                        are removed), default: 512\n"
+                + "  --plan                only print json manifest of files, which would be extracted\n"
+                + "                        (with sizes, origins and timing), output-dir is not needed\n"
+                + "  --slice               only report sources needed by members (methods, fields...)\n"
+                + "                        reachable from test sources, compared to all sources read\n"
+                + "                        by javac, output-dir is not needed (requires jdk.compiler)\n"
+                + "  --build-index [FILE]  write reverse dependency index of tests to file (nothing\n"
+                + "                        is extracted, output-dir is not needed)\n"
+                + "  --index [FILE]        reverse dependency index used by --affected-by\n"
+                + "  --affected-by [FILE]... print tests (from index), which depend on any of given\n"
+                + "                        files (relative to jck-dir or absolute if jck-dir is set)\n"
+                + "  --history [FILE]      record resolve time, number and size of dependencies\n"
+                + "                        of tests to file and use it to process largest tests\n"
+                + "                        first (tests without history are estimated by size)\n"
+                + "  --stats               print statistics (caches etc.) to stderr\n"
+                + "  --prebuilt-classes    also copy classes compiled by jck, generated scripts\n"
+                + "                        then recompile only sources modified after extraction\n";
         System.out.print(help);
     }
 
@@ -363,11 +1179,132 @@ public class TestExtractor {
                     options.outputDirArg = args[++i];
                     break;
                 case "--test":
-                    options.testNameArg = args[++i];
+                    options.testNameArgs.add(args[++i]);
+                    break;
+                case "--test-list":
+                    if (options.batch) {
+                        System.err.println("ERR: --batch can not be combined with --test-list");
+                        System.exit(1);
+                    }
+                    options.testListArg = args[++i];
+                    break;
+                case "--batch":
+                    if (options.testListArg != null) {
+                        System.err.println("ERR: --batch can not be combined with --test-list");
+                        System.exit(1);
+                    }
+                    options.batch = true;
+                    options.testListArg = args[++i];
+                    break;
+                case "--queue-size":
+                    options.queueSize = Integer.parseInt(args[++i]);
+                    if (options.queueSize < 1) {
+                        System.err.println("ERR: Wrong queue size: " + args[i]);
+                        System.exit(1);
+                    }
+                    break;
+                case "--watch":
+                    options.watch = true;
+                    break;
+                case "--workers":
+                    options.workers = Integer.parseInt(args[++i]);
+                    if (options.workers < 0) {
+                        System.err.println("ERR: Wrong number of workers: " + args[i]);
+                        System.exit(1);
+                    }
+                    break;
+                case "--worker-heap":
+                    options.workerHeap = args[++i];
+                    break;
+                case "--worker-timeout":
+                    options.workerTimeout = Long.parseLong(args[++i]);
+                    if (options.workerTimeout < 1) {
+                        System.err.println("ERR: Wrong worker timeout: " + args[i]);
+                        System.exit(1);
+                    }
+                    break;
+                case "--worker-recycle":
+                    options.workerRecycle = Integer.parseInt(args[++i]);
+                    if (options.workerRecycle < 1) {
+                        System.err.println("ERR: Wrong worker recycle count: " + args[i]);
+                        System.exit(1);
+                    }
+                    break;
+                case "--shard":
+                    String[] shard = args[++i].split("/");
+                    try {
+                        options.shardIndex = shard.length == 2 ? Integer.parseInt(shard[0]) : 0;
+                        options.shardCount = shard.length == 2 ? Integer.parseInt(shard[1]) : 0;
+                    } catch (NumberFormatException e) {
+                        options.shardCount = 0;
+                    }
+                    if (options.shardIndex < 1 || options.shardIndex > options.shardCount) {
+                        System.err.println("ERR: Wrong shard (expected I/N, 1 <= I <= N): " + args[i]);
+                        System.exit(1);
+                    }
+                    break;
+                case "--merge":
+                    while (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                        options.mergeDirs.add(FileSystems.getDefault().getPath(args[++i]).toAbsolutePath());
+                    }
+                    if (options.mergeDirs.isEmpty()) {
+                        System.err.println("ERR: Missing directories for: --merge arg");
+                        System.exit(1);
+                    }
                     break;
                 case "--additional-file":
                     options.additionalFilesArgs.add(args[++i]);
                     break;
+                case "--io-threads":
+                    options.ioThreads = Integer.parseInt(args[++i]);
+                    if (options.ioThreads < 1) {
+                        System.err.println("ERR: Wrong number of io threads: " + args[i]);
+                        System.exit(1);
+                    }
+                    break;
+                case "--copy-threads":
+                    options.copyThreads = Integer.parseInt(args[++i]);
+                    if (options.copyThreads < 1) {
+                        System.err.println("ERR: Wrong number of copy threads: " + args[i]);
+                        System.exit(1);
+                    }
+                    break;
+                case "--cache-dir":
+                    options.cacheDir = FileSystems.getDefault().getPath(args[++i]).toAbsolutePath();
+                    break;
+                case "--cache-size":
+                    options.cacheSize = Long.parseLong(args[++i]) * 1024 * 1024;
+                    break;
+                case "--plan":
+                    options.plan = true;
+                    break;
+                case "--slice":
+                    options.slice = true;
+                    break;
+                case "--build-index":
+                    options.buildIndex = FileSystems.getDefault().getPath(args[++i]).toAbsolutePath();
+                    break;
+                case "--index":
+                    options.index = FileSystems.getDefault().getPath(args[++i]).toAbsolutePath();
+                    break;
+                case "--affected-by":
+                    while (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                        options.affectedByArgs.add(args[++i]);
+                    }
+                    if (options.affectedByArgs.isEmpty()) {
+                        System.err.println("ERR: Missing files for: --affected-by arg");
+                        System.exit(1);
+                    }
+                    break;
+                case "--history":
+                    options.historyFile = FileSystems.getDefault().getPath(args[++i]).toAbsolutePath();
+                    break;
+                case "--stats":
+                    options.stats = true;
+                    break;
+                case "--prebuilt-classes":
+                    options.prebuiltClasses = true;
+                    break;
                 default:
                     System.err.println("ERR: Unknown arg: " + args[i]);
                     printHelp();
@@ -375,15 +1312,70 @@ public class TestExtractor {
             }
         }
 
+        if (options.copyThreads == 0) {
+            options.copyThreads = options.ioThreads;
+        }
+        /* live index exists only in extractor process, workers would not
+           use it */
+        if (options.watch && options.workers > 0) {
+            System.err.println("ERR: --watch can not be combined with --workers");
+            System.exit(1);
+        }
+
+        /* Query of index does not need anything else */
+        if (options.index != null || !options.affectedByArgs.isEmpty()) {
+            if (options.index == null || !Files.isRegularFile(options.index)) {
+                System.err.println("ERR: Missing or wrong: --index arg");
+                System.exit(1);
+            }
+            if (options.affectedByArgs.isEmpty()) {
+                System.err.println("ERR: Missing: --affected-by arg");
+                System.exit(1);
+            }
+            if (options.jckDirArg != null) {
+                options.jckDir = FileSystems.getDefault().getPath(options.jckDirArg).toAbsolutePath();
+            }
+            return options;
+        }
+
+        /* Merge of shard outputs does not need jck */
+        if (!options.mergeDirs.isEmpty()) {
+            for (Path mergeDir : options.mergeDirs) {
+                if (!Files.isRegularFile(mergeDir.resolve(Shards.MANIFEST_FILE))) {
+                    System.err.println("ERR: Not an output of shard: " + mergeDir);
+                    System.exit(1);
+                }
+            }
+            if (options.outputDirArg == null || !Files.isDirectory(FileSystems.getDefault().getPath(options.outputDirArg))) {
+                System.err.println("ERR: Missing or wrong: --output-dir arg");
+                System.exit(1);
+            }
+            options.outputDir = FileSystems.getDefault().getPath(options.outputDirArg).toAbsolutePath();
+            return options;
+        }
+
         if (options.jckDirArg == null) {
             System.err.println("ERR: Missing: --jck-dir arg");
             System.exit(1);
         }
-        if (options.outputDirArg == null) {
+        if (options.outputDirArg == null && !options.plan && !options.slice && options.buildIndex == null) {
             System.err.println("ERR: Missing: --output-dir arg");
             System.exit(1);
         }
-        if (options.testNameArg == null) {
+        if (options.testListArg != null) {
+            try {
+                for (String line : Files.readAllLines(FileSystems.getDefault().getPath(options.testListArg), Charset.forName("UTF-8"))) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        options.testNameArgs.add(line);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("ERR: Failed to read test list: " + options.testListArg);
+                System.exit(1);
+            }
+        }
+        if (options.testNameArgs.isEmpty()) {
             System.err.println("ERR: Missing: --test arg");
             System.exit(1);
         }
@@ -399,44 +1391,38 @@ public class TestExtractor {
         }
         jckDir = jckDir.toAbsolutePath();
         options.jckDir = jckDir;
-
-        /* Checks for output-dir */
-        Path outputDir = fs.getPath(options.outputDirArg);
-        if (!Files.isDirectory(outputDir)) {
-            System.err.println("ERR: Wrong output-dir: " + options.outputDirArg);
+        if (options.prebuiltClasses && !Files.isDirectory(jckDir.resolve("classes"))) {
+            System.err.println("ERR: Missing classes directory in jck-dir: " + options.jckDirArg);
             System.exit(1);
         }
-        options.outputDir = outputDir.toAbsolutePath();
 
-        /* Checks Test name */
-        String testUrl = options.testNameArg;
-        int hashIndex = testUrl.lastIndexOf('#');
-        if (hashIndex > 0) {
-            testUrl = testUrl.substring(0, hashIndex);
-        }
-        if (testUrl.startsWith("/")) {
-            testUrl = testUrl.substring(1);
-        }
-        if (testUrl.startsWith("tests/")) {
-            testUrl = testUrl.substring(6);
+        /* Checks for output-dir */
+        if (options.outputDirArg != null) {
+            Path outputDir = fs.getPath(options.outputDirArg);
+            if (!Files.isDirectory(outputDir)) {
+                System.err.println("ERR: Wrong output-dir: " + options.outputDirArg);
+                System.exit(1);
+            }
+            options.outputDir = outputDir.toAbsolutePath();
         }
+
+        /* Checks Test names */
         Path jckTestsDir = jckDir.resolve("tests");
-        if (testUrl.endsWith(".html")) {
-            Path htmlFile = jckTestsDir.resolve(testUrl.replace("/", fs.getSeparator()));
-            if (!Files.exists(htmlFile)) {
-                options.htmlFile = htmlFile;
+        Set<Path> testSrcDirs = new LinkedHashSet<Path>();
+        for (String testNameArg : options.testNameArgs) {
+            List<Path> testDirs;
+            try {
+                testDirs = findTestDirs(jckTestsDir, testNameArg);
+            } catch (IOException e) {
+                testDirs = Collections.emptyList();
             }
-            int slashIndex = testUrl.lastIndexOf('/');
-            if (slashIndex > 0) {
-                testUrl = testUrl.substring(0, slashIndex);
+            if (testDirs.isEmpty()) {
+                System.err.println("ERR: Wrong test name: " + testNameArg);
+                System.exit(1);
             }
+            testSrcDirs.addAll(testDirs);
         }
-        Path testSrcDir = jckTestsDir.resolve(testUrl.replace("/", fs.getSeparator()));
-        if (!Files.isDirectory(testSrcDir)) {
-            System.err.println("ERR: Wrong test name: " + options.testNameArg);
-            System.exit(1);
-        }
-        options.testSrcDir = testSrcDir.toAbsolutePath();
+        options.testSrcDirs.addAll(testSrcDirs);
         for (String additionalFileArg : options.additionalFilesArgs) {
             Path additionalFile = jckDir.resolve(additionalFileArg);
             if (!Files.exists(additionalFile)) {
@@ -448,12 +1434,127 @@ public class TestExtractor {
         return options;
     }
 
+    public static class TestInfo {
+
+        final Path testSrcDir;
+        IntSet deps = new IntSet();
+        /* deps by origin (first origin, in which dep was found) */
+        final IntSet[] originDeps = new IntSet[Origin.values().length];
+        /* sources read by javac when compiling each of the test's sources */
+        final Map<Integer, IntSet> sourceDeps = new HashMap<Integer, IntSet>();
+        final List<File> javaSrcFiles = new ArrayList<File>();
+        final List<String> kshClasses = new ArrayList<String>();
+        boolean hasNatives;
+        String cacheKey;
+        /* loaded from dependency cache (already resolved) */
+        boolean cached;
+        /* time spent resolving dependencies (javac) */
+        long resolveMillis;
+
+        TestInfo(Path testSrcDir) {
+            this.testSrcDir = testSrcDir;
+            for (int i = 0; i < originDeps.length; ++i) {
+                originDeps[i] = new IntSet();
+            }
+        }
+
+        void addDep(int dep, Origin origin) {
+            if (deps.add(dep)) {
+                originDeps[origin.ordinal()].add(dep);
+            }
+        }
+
+        void addDeps(IntSet ids, Origin origin) {
+            for (int dep : ids.toArray()) {
+                addDep(dep, origin);
+            }
+        }
+
+        Origin getOrigin(int dep) {
+            for (Origin origin : Origin.values()) {
+                if (originDeps[origin.ordinal()].contains(dep)) {
+                    return origin;
+                }
+            }
+            return null;
+        }
+    }
+
+    /* where was dependency found */
+    public enum Origin {
+
+        TEST("test-dir"),
+        HTML("html"),
+        JAVAC("javac"),
+        KSH("ksh"),
+        ADDITIONAL("additional"),
+        NATIVE("native");
+
+        final String name;
+
+        Origin(String name) {
+            this.name = name;
+        }
+
+        public static Origin forName(String name) {
+            for (Origin origin : values()) {
+                if (origin.name.equals(name)) {
+                    return origin;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    public static class Discovery {
+
+        final List<TestInfo> tests = new ArrayList<TestInfo>();
+        long scanMillis;
+        long resolveMillis;
+    }
+
+    /* prints tests (sorted, one per line) affected by change of given files */
+    public static void printAffectedTests(Options options) throws IOException {
+        ReverseIndex index = ReverseIndex.open(options.index);
+        Set<String> tests = new TreeSet<String>();
+        for (String affectedByArg : options.affectedByArgs) {
+            Path file = FileSystems.getDefault().getPath(affectedByArg);
+            if (file.isAbsolute() && options.jckDir != null) {
+                affectedByArg = ReverseIndex.toIndexPath(options.jckDir, file);
+            }
+            tests.addAll(index.getAffectedTests(affectedByArg));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String test : tests) {
+            sb.append(test).append('\n');
+        }
+        System.out.print(sb);
+    }
+
     /**
      * @param args the command line arguments
      */
     public static void main(String[] args) throws Exception {
         Options options = processArgs(args);
-        extractTest(options);
+        options.ioExecutor = IoExecutors.newExecutor(options.ioThreads);
+        try {
+            if (!options.affectedByArgs.isEmpty()) {
+                printAffectedTests(options);
+                return;
+            }
+            if (!options.mergeDirs.isEmpty()) {
+                Shards.merge(options.mergeDirs, options.outputDir, options.ioExecutor, options.copyThreads);
+                return;
+            }
+            extractTest(options);
+        } finally {
+            options.ioExecutor.shutdownNow();
+        }
     }
 
 }
@@ -0,0 +1,204 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pool of worker JVMs (DependencyWorker) resolving dependencies of tests,
+ * so that memory used by javac stays within fixed budget (heap of workers)
+ * in runs over whole jck. Worker is restarted after given number of tasks
+ * and killed, when task takes longer than timeout.
+ *
+ * @author zzambers
+ */
+public class WorkerPool implements Closeable {
+
+    private final TestExtractor.Options options;
+    private final PathTable paths;
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<Worker>();
+    private final List<Worker> workers = new ArrayList<Worker>();
+    private final ScheduledExecutorService timer;
+    /* threads waiting for responses of workers */
+    private final ExecutorService dispatcher;
+
+    public WorkerPool(TestExtractor.Options options, PathTable paths) {
+        this.options = options;
+        this.paths = paths;
+        for (int i = 0; i < options.workers; ++i) {
+            Worker worker = new Worker();
+            workers.add(worker);
+            idle.add(worker);
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "jck-extractor-worker-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        dispatcher = IoExecutors.newExecutor(Math.max(options.workers, 1));
+    }
+
+    /* worker process, started lazily, used by single thread at a time */
+    class Worker {
+
+        Process process;
+        BufferedReader reader;
+        Writer writer;
+        int tasks;
+
+        void start() throws IOException {
+            List<String> command = new ArrayList<String>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            if (options.workerHeap != null) {
+                command.add("-Xmx" + options.workerHeap);
+            }
+            /* javac reports OutOfMemoryError just as failed compilation, so
+               dependencies would be silently incomplete, worker rather
+               terminates (option is ignored by JVMs not supporting it) */
+            command.add("-XX:+IgnoreUnrecognizedVMOptions");
+            command.add("-XX:+ExitOnOutOfMemoryError");
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(DependencyWorker.class.getName());
+            command.add("--jck-dir");
+            command.add(options.jckDir.toString());
+            command.add("--io-threads");
+            command.add(String.valueOf(options.ioThreads));
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            process = pb.start();
+            reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            tasks = 0;
+        }
+
+        void stop() {
+            if (process == null) {
+                return;
+            }
+            try {
+                /* end of input terminates worker */
+                writer.close();
+            } catch (IOException e) {
+                /* worker already terminated */
+            }
+            process.destroy();
+            process = null;
+        }
+
+        void resolve(TestExtractor.TestInfo test) throws IOException {
+            if (process != null && tasks >= options.workerRecycle) {
+                stop();
+            }
+            if (process == null) {
+                start();
+            }
+            ++tasks;
+            final Process taskProcess = process;
+            final AtomicBoolean timedOut = new AtomicBoolean();
+            ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    timedOut.set(true);
+                    taskProcess.destroy();
+                }
+            }, options.workerTimeout, TimeUnit.SECONDS);
+            try {
+                DependencyWorker.writeRequest(writer, test);
+                DependencyWorker.readResponse(reader, test, paths);
+            } catch (IOException e) {
+                /* worker may be in inconsistent state */
+                stop();
+                if (timedOut.get()) {
+                    throw new IOException("Timeout of dependency worker (" + options.workerTimeout + " s) for test: " + test.testSrcDir, e);
+                }
+                throw new IOException("Dependency worker failed for test: " + test.testSrcDir, e);
+            } finally {
+                timeout.cancel(false);
+            }
+        }
+    }
+
+    /* resolves dependencies of single test using idle worker (waits for one) */
+    public void resolve(TestExtractor.TestInfo test) throws IOException {
+        Worker worker;
+        try {
+            worker = idle.take();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        try {
+            worker.resolve(test);
+        } finally {
+            idle.add(worker);
+        }
+    }
+
+    /* resolves dependencies of tests using all workers */
+    public void resolve(List<TestExtractor.TestInfo> tests) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final TestExtractor.TestInfo test : tests) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    resolve(test);
+                    return null;
+                }
+            });
+        }
+        FileUtil.runAll(tasks, dispatcher);
+    }
+
+    @Override
+    public void close() {
+        for (Worker worker : workers) {
+            worker.stop();
+        }
+        timer.shutdownNow();
+        dispatcher.shutdownNow();
+    }
+}
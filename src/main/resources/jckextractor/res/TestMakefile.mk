@@ -2,10 +2,14 @@ JAVA=$(JAVA_HOME)/bin/java
 JAVAC=$(JAVA_HOME)/bin/javac
 #CC=gcc
 
+# targets are independent, so `make -j` builds libraries, compiles sources and
+# runs scripts in parallel
 SCRIPTS=$(shell find tests -type f -name '*.ksh' )
 LIBS=$(shell [ -d src/share/lib/jni ] && echo 'lib/libjckjni.so' ; [ -d src/share/lib/jvmti ] && echo 'lib/libjckjvmti.so' )
+SOURCES=$(shell find src tests -type f -name '*.java' 2>/dev/null )
+STAMPS=$(SOURCES:%=classes/.stamps/%.stamp)
 
-.PHONY: test clean $(SCRIPTS)
+.PHONY: test clean classes $(SCRIPTS)
 
 test: $(SCRIPTS) | classes $(LIBS)
 
@@ -13,18 +17,61 @@ $(SCRIPTS): %.ksh: | classes $(LIBS)
 	export LD_LIBRARY_PATH=$$(pwd)/lib ; \
 	sh "$@"
 
-classes:
-	mkdir classes
-	$(JAVAC) -d classes -g $$( find src tests -type f -name '*.java' )
+# stamp of a source is out of date when the source or any source it depends on
+# changed (see sources.mk), out of date sources are collected to classes/.changed
+# and compiled by single javac call
+-include sources.mk
+
+classes/.stamps/%.stamp: %
+	@mkdir -p $(dir $@)
+	@echo '$<' >> classes/.changed
+	@touch $@
+
+classes: $(STAMPS)
+	@if [ -f classes/.changed ] ; then \
+		sort -u classes/.changed > classes/.argfile ; \
+		rm classes/.changed ; \
+		echo "compiling $$( wc -l < classes/.argfile ) source(s)" ; \
+		if ! $(JAVAC) -cp classes -d classes -g @classes/.argfile ; then \
+			sed -e 's|^|classes/.stamps/|' -e 's|$$|.stamp|' classes/.argfile | xargs rm -f ; \
+			exit 1 ; \
+		fi ; \
+	fi
 
 lib:
 	mkdir lib
 
+# native libraries are cached in NATIVE_CACHE (shared by all extracted tests),
+# keyed by hash of native sources, compiler version and flags, so identical
+# sources are compiled only once (set NATIVE_CACHE= to disable the cache)
+NATIVE_CACHE ?= $(HOME)/.cache/jck-test-extractor/native
+SHA256SUM ?= sha256sum
+JNI_CFLAGS = -fPIC -shared -Isrc/share/lib/jni/include -Isrc/share/lib/jni/include/amd64
+JVMTI_CFLAGS = -fPIC -shared -I. -Isrc/share/lib/jvmti/include -Isrc/share/lib/jni/include/amd64 -Isrc/share/lib/jni/include
+
+# $(1) library, $(2) compiler flags and sources, $(3) directories with sources
+# and headers and other headers reachable by include path (hashed), cached
+# library is published by atomic rename
+define native_lib
+	@key=$$( { find $(3) -type f | LC_ALL=C sort | xargs $(SHA256SUM) ; $(CC) --version ; echo '$(2)' ; } | $(SHA256SUM) | cut -d ' ' -f 1 ) ; \
+	cached='$(NATIVE_CACHE)'/$$key/$(notdir $(1)) ; \
+	if [ -n '$(NATIVE_CACHE)' ] && [ -f "$$cached" ] ; then \
+		echo "using cached $$cached" ; \
+		cp "$$cached" $(1) ; \
+	else \
+		echo '$(CC) $(2) -o $(1)' ; \
+		$(CC) $(2) -o $(1) || exit 1 ; \
+		if [ -n '$(NATIVE_CACHE)' ] && mkdir -p "$$( dirname "$$cached" )" 2>/dev/null ; then \
+			cp $(1) "$$cached.$$$$.tmp" && mv -f "$$cached.$$$$.tmp" "$$cached" || rm -f "$$cached.$$$$.tmp" ; \
+		fi ; \
+	fi
+endef
+
 lib/libjckjni.so: | lib
-	$(CC) -fPIC -shared -Isrc/share/lib/jni/include -Isrc/share/lib/jni/include/amd64 -o lib/libjckjni.so src/share/lib/jni/jckjni.c
+	$(call native_lib,lib/libjckjni.so,$(JNI_CFLAGS) src/share/lib/jni/jckjni.c,src/share/lib/jni)
 
 lib/libjckjvmti.so: | lib
-	$(CC) -fPIC -shared -I. -Isrc/share/lib/jvmti/include -Isrc/share/lib/jni/include/amd64 -Isrc/share/lib/jni/include -o lib/libjckjvmti.so src/share/lib/jvmti/jckjvmti.c
+	$(call native_lib,lib/libjckjvmti.so,$(JVMTI_CFLAGS) src/share/lib/jvmti/jckjvmti.c,src/share/lib/jni src/share/lib/jvmti $(shell find . -name '*.h'))
 
 clean:
 	rm -rf classes
@@ -20,9 +20,18 @@ mkdir -p classes
 echo "*** {TEST} ***"
 echo "*** run at {DATE} ***"
 echo "*** Now using: $JAVA_HOME ***"
-echo "compiling . . . "
-javafiles=`find  -type f | grep "\\.java"`
-$JAVAC -d $out $javafiles
+if [ -f classes/.prebuilt ] ; then
+  echo "using prebuilt classes, compiling modified sources . . . "
+  javafiles=`find  -type f -newer classes/.prebuilt | grep "\\.java$"`
+  if [ -n "$javafiles" ] ; then
+    $JAVAC -cp $out -d $out $javafiles
+    touch classes/.prebuilt
+  fi
+else
+  echo "compiling . . . "
+  javafiles=`find  -type f | grep "\\.java"`
+  $JAVAC -d $out $javafiles
+fi
 echo "***********************************************************"
 echo "to set proper main method and -D switches and other params"
 echo "***********************************************************"
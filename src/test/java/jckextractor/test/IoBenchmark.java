@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor.test;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import jckextractor.FileUtil;
+import jckextractor.IoExecutors;
+
+/**
+ * Measures I/O paths of extractor (not part of extractor jar). Each
+ * iteration walks given directory (as when creating fixed source trees) and
+ * copies it (as when copying dependencies), median times are printed. Mode
+ * of threads is chosen as by extractor: on java 21+, when run from
+ * multi-release jar, bounded virtual threads are used, unless
+ * -Djckextractor.platformThreads=true is given, so modes are compared by
+ * separate runs:
+ *
+ * java -cp jck-test-extractor.jar:target/test-classes jckextractor.test.IoBenchmark --dir JCK/src
+ * java -Djckextractor.platformThreads=true -cp ... jckextractor.test.IoBenchmark --dir JCK/src
+ *
+ * @author zzambers
+ */
+public class IoBenchmark {
+
+    static long walk(Path dir, Executor executor) throws IOException {
+        long start = System.nanoTime();
+        FileUtil.ParallelVisitor<Long> visitor = new FileUtil.ParallelVisitor<Long>() {
+            @Override
+            public Long visitFile(Path file, BasicFileAttributes attrs) {
+                return attrs.size();
+            }
+        };
+        FileUtil.parallelWalk(dir, visitor, executor);
+        return System.nanoTime() - start;
+    }
+
+    static long copy(Path dir, Executor executor, int threads) throws IOException {
+        Path targetDir = Files.createTempDirectory("jck-extractor-bench");
+        try {
+            long start = System.nanoTime();
+            FileUtil.recursiveCopy(dir, targetDir, executor, threads);
+            return System.nanoTime() - start;
+        } finally {
+            FileUtil.recursiveDelete(targetDir);
+        }
+    }
+
+    static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    static void run(Path dir, int threads, int iterations) throws IOException {
+        long[] walkNanos = new long[iterations];
+        long[] copyNanos = new long[iterations];
+        ExecutorService executor = IoExecutors.newExecutor(threads);
+        try {
+            /* warm up */
+            walk(dir, executor);
+            for (int i = 0; i < iterations; ++i) {
+                walkNanos[i] = walk(dir, executor);
+                copyNanos[i] = copy(dir, executor, threads);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        System.out.println(String.format(Locale.ROOT, "%-8s threads %4d: walk %8.1f ms, copy %8.1f ms",
+                IoExecutors.isVirtual() ? "virtual" : "platform", threads,
+                median(walkNanos) / 1e6, median(copyNanos) / 1e6));
+    }
+
+    public static void printHelp() {
+        String help
+                = "Args: \n"
+                + "  --help                prints this help\n"
+                + "  --dir [DIR]           directory to walk and copy (e.g. src of jck)\n"
+                + "  --threads [N]...      thread counts to compare, default: number of cpus\n"
+                + "  --iterations [N]      number of measured iterations, default: 5\n";
+        System.out.print(help);
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws Exception {
+        Path dir = null;
+        List<Integer> threadCounts = new ArrayList<Integer>();
+        int iterations = 5;
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--help":
+                    printHelp();
+                    System.exit(0);
+                    break;
+                case "--dir":
+                    dir = FileSystems.getDefault().getPath(args[++i]).toAbsolutePath();
+                    break;
+                case "--threads":
+                    while (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                        threadCounts.add(Integer.parseInt(args[++i]));
+                    }
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    System.err.println("ERR: Unknown arg: " + args[i]);
+                    printHelp();
+                    System.exit(1);
+            }
+        }
+        if (dir == null || !Files.isDirectory(dir)) {
+            System.err.println("ERR: Missing or wrong: --dir arg");
+            System.exit(1);
+        }
+        if (iterations < 1) {
+            System.err.println("ERR: Wrong number of iterations: " + iterations);
+            System.exit(1);
+        }
+        if (threadCounts.isEmpty()) {
+            threadCounts.add(IoExecutors.getDefaultThreads());
+        }
+        if (!IoExecutors.isVirtualSupported()) {
+            System.err.println("virtual threads not available (requires java 21+ and multi-release jar)");
+        }
+        for (int threads : threadCounts) {
+            run(dir, threads, iterations);
+        }
+    }
+}
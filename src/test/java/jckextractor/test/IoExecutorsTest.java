@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor.test;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import jckextractor.IoExecutors;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ *
+ * @author zzambers
+ */
+public class IoExecutorsTest {
+
+    private static int getJavaVersion() {
+        String version = System.getProperty("java.specification.version");
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        return Integer.parseInt(version);
+    }
+
+    /* runs tasks, returns highest number of tasks running at once */
+    private static int getConcurrency(ExecutorService executor, final Method isVirtual, final boolean virtual) throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 8; ++i) {
+            futures.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    int current = running.incrementAndGet();
+                    int max;
+                    while ((max = maxRunning.get()) < current && !maxRunning.compareAndSet(max, current)) {
+                    }
+                    Thread.sleep(50);
+                    running.decrementAndGet();
+                    return isVirtual == null || (Boolean) isVirtual.invoke(Thread.currentThread()) == virtual;
+                }
+            }));
+        }
+        for (Future<Boolean> future : futures) {
+            Assert.assertTrue(future.get());
+        }
+        return maxRunning.get();
+    }
+
+    @Test
+    public void testExecutor() throws Exception {
+        ExecutorService executor = IoExecutors.newExecutor(2);
+        try {
+            Assert.assertTrue(getConcurrency(executor, null, false) <= 2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /* version for java 21+ (META-INF/versions/21 of mrjar profile) is not
+       used, when classes are loaded from directory, so it is loaded
+       explicitly */
+    @Test
+    public void testVirtualExecutor() throws Exception {
+        Assume.assumeTrue(getJavaVersion() >= 21);
+        Path classesDir = Paths.get(IoExecutors.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        Path versionDir = classesDir.resolve("META-INF").resolve("versions").resolve("21");
+        Assume.assumeTrue(Files.isDirectory(versionDir));
+        URL[] urls = new URL[]{versionDir.toUri().toURL(), classesDir.toUri().toURL()};
+        try (URLClassLoader loader = new URLClassLoader(urls, null)) {
+            Class<?> executors = loader.loadClass(IoExecutors.class.getName());
+            Assert.assertEquals(Boolean.TRUE, executors.getMethod("isVirtualSupported").invoke(null));
+            ExecutorService executor = (ExecutorService) executors.getMethod("newExecutor", int.class).invoke(null, 2);
+            try {
+                /* tasks run on virtual threads, but only 2 at once */
+                Assert.assertTrue(getConcurrency(executor, Thread.class.getMethod("isVirtual"), true) <= 2);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2020 zzambers.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jckextractor.test;
+
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import jckextractor.IntSet;
+import jckextractor.PathTable;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author zzambers
+ */
+public class PathTableTest {
+
+    @Test
+    public void testIntern() {
+        FileSystem fs = FileSystems.getDefault();
+        PathTable paths = new PathTable(fs);
+        int a = paths.intern(fs.getPath("/jck/src/a/A.java"));
+        int b = paths.intern("/jck/src/a/B.java");
+        int dir = paths.intern("/jck/src");
+        int rel = paths.intern("src/a/A.java");
+        Assert.assertEquals(a, paths.intern("/jck/src/a/A.java"));
+        Assert.assertEquals(b, paths.intern(fs.getPath("/jck/src/a/B.java")));
+        Assert.assertNotEquals(a, rel);
+        Assert.assertEquals("/jck/src/a/A.java", paths.toString(a));
+        Assert.assertEquals("src/a/A.java", paths.toString(rel));
+        Assert.assertEquals(fs.getPath("/jck/src/a/B.java"), paths.getPath(b));
+        Assert.assertEquals(paths.getParent(a), paths.getParent(b));
+        Assert.assertTrue(paths.isAncestor(dir, a));
+        Assert.assertFalse(paths.isAncestor(dir, rel));
+    }
+
+    @Test
+    public void testManyPaths() {
+        PathTable paths = new PathTable(FileSystems.getDefault());
+        IntSet ids = new IntSet();
+        for (int i = 0; i < 10000; ++i) {
+            Assert.assertTrue(ids.add(paths.intern("/jck/src/pkg" + (i % 100) + "/F" + i + ".java")));
+        }
+        for (int i = 0; i < 10000; ++i) {
+            String path = "/jck/src/pkg" + (i % 100) + "/F" + i + ".java";
+            int id = paths.intern(path);
+            Assert.assertFalse(ids.add(id));
+            Assert.assertTrue(ids.contains(id));
+            Assert.assertEquals(path, paths.toString(id));
+        }
+        Assert.assertEquals(10000, ids.size());
+        Assert.assertEquals(10000, ids.toArray().length);
+    }
+
+}
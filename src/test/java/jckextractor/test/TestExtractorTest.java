@@ -23,13 +23,37 @@
  */
 package jckextractor.test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import jckextractor.CopyEngine;
+import jckextractor.DependenciesGetter;
 import jckextractor.FileUtil;
+import jckextractor.History;
+import jckextractor.IntSet;
+import jckextractor.IoExecutors;
+import jckextractor.LiveJckIndex;
+import jckextractor.PackageIndex;
+import jckextractor.PathTable;
+import jckextractor.SourceCache;
 import jckextractor.TestExtractor;
 import org.junit.After;
 import org.junit.Assert;
@@ -245,17 +269,31 @@ public class TestExtractorTest {
         outputDir = null;
     }
 
-    public void runExtractor(String testName) throws Exception {
-        String[] args = new String[6];
+    public void runExtractor(String testName, String... extraArgs) throws Exception {
+        String[] args = new String[6 + extraArgs.length];
         args[0] = "--jck-dir";
         args[1] = jckDir.toString();
         args[2] = "--output-dir";
         args[3] = outputDir.toString();
         args[4] = "--test";
         args[5] = testName;
+        System.arraycopy(extraArgs, 0, args, 6, extraArgs.length);
         TestExtractor.main(args);
     }
 
+    /* runs extractor, returns its standard output */
+    public String runExtractorOutput(String... args) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        PrintStream origOut = System.out;
+        System.setOut(new PrintStream(bos, true, "UTF-8"));
+        try {
+            TestExtractor.main(args);
+        } finally {
+            System.setOut(origOut);
+        }
+        return bos.toString("UTF-8");
+    }
+
     @Test
     public void testSimple() throws Exception {
         runExtractor("api/api_pkg/test1");
@@ -340,4 +378,620 @@ public class TestExtractorTest {
         AssertExtracted(linkedByHtml, true);
     }
 
+    @Test
+    public void testPrebuiltClasses() throws Exception {
+        List<String> lines = new ArrayList<String>();
+        lines.add("package testspkg.api.pkg.test2parentpkg.test2pkg;");
+        lines.add("");
+        lines.add("import testspkg.api.pkg.test2parentpkg.Test2Parent;");
+        lines.add("");
+        lines.add("public class Test2 extends Test2Parent {");
+        lines.add("    static class Nested {}");
+        lines.add("}");
+        lines.add("");
+        lines.add("class Test2Helper {}");
+        Files.write(testWithParent, lines, Charset.defaultCharset());
+        lines.clear();
+        Path otherSrc = tmpDir.resolve("other").resolve("Test2Other.java");
+        Files.createDirectories(otherSrc.getParent());
+        lines.add("package testspkg.api.pkg.test2parentpkg.test2pkg;");
+        lines.add("class Test2Other {}");
+        Files.write(otherSrc, lines, Charset.defaultCharset());
+        Path classesDir = jckDir.resolve("classes");
+        Files.createDirectories(classesDir);
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Assert.assertEquals(0, compiler.run(null, null, null, "-d", classesDir.toString(),
+                test2Parent.toString(), testWithParent.toString(), otherSrc.toString()));
+        Path test2ParentClassesDir = classesDir.resolve("testspkg").resolve("api").resolve("pkg").resolve("test2parentpkg");
+        Path test2ClassesDir = test2ParentClassesDir.resolve("test2pkg");
+        Path test2Class = test2ClassesDir.resolve("Test2.class");
+        Path test2NestedClass = test2ClassesDir.resolve("Test2$Nested.class");
+        Path test2HelperClass = test2ClassesDir.resolve("Test2Helper.class");
+        Path unrelatedClass = test2ClassesDir.resolve("Test2Other.class");
+        /* source without prebuilt class is not marked as compiled */
+        Files.delete(test2ParentClassesDir.resolve("Test2Parent.class"));
+
+        runExtractor("api/api_pkg/test2parent/test2", "--prebuilt-classes");
+        AssertExtracted(testWithParent, true);
+        AssertExtracted(test2Parent, true);
+        AssertExtracted(test2Class, true);
+        AssertExtracted(test2NestedClass, true);
+        AssertExtracted(test2HelperClass, true);
+        AssertExtracted(unrelatedClass, false);
+        Assert.assertTrue(Files.exists(outputDir.resolve("classes").resolve(".prebuilt")));
+        Path stampsDir = outputDir.resolve("classes").resolve(".stamps");
+        Assert.assertTrue(Files.exists(stampsDir.resolve(jckDir.relativize(testWithParent) + ".stamp")));
+        Assert.assertFalse(Files.exists(stampsDir.resolve(jckDir.relativize(test2Parent) + ".stamp")));
+    }
+
+    @Test
+    public void testSourcesMakefile() throws Exception {
+        runExtractor("api/api_pkg/testDirecLib");
+        List<String> lines = Files.readAllLines(outputDir.resolve("sources.mk"), Charset.forName("UTF-8"));
+        String rule = "classes/.stamps/tests/api/api_pkg/testDirecLib/TestDirectLib.java.stamp:"
+                + " src/direct/pkg/DirectA.java";
+        Assert.assertTrue(lines.toString(), lines.contains(rule));
+        /* library sources are recompiled, when any of them changes */
+        Assert.assertTrue(lines.toString(), lines.contains("LIB_SOURCES := src/direct/pkg/DirectA.java"));
+        Assert.assertTrue(lines.toString(), lines.contains("$(LIB_SOURCES:%=classes/.stamps/%.stamp): $(LIB_SOURCES)"));
+    }
+
+    @Test
+    public void testMultipleTests() throws Exception {
+        runExtractor("api/api_pkg/testDirecLib", "--test", "api/api_pkg/test2parent/test2");
+        AssertExtracted(testDirectLib, true);
+        AssertExtracted(testWithParent, true);
+        AssertExtracted(directA, true);
+        AssertExtracted(test2Parent, true);
+        AssertExtracted(jckAClass, false);
+        AssertExtracted(testTestLib, false);
+    }
+
+    @Test
+    public void testGlob() throws Exception {
+        runExtractor("api/api_pkg/test*Lib");
+        AssertExtracted(testDirectLib, true);
+        AssertExtracted(testJckLib, true);
+        AssertExtracted(testTestLib, true);
+        AssertExtracted(directA, true);
+        AssertExtracted(jckAClass, true);
+        AssertExtracted(testsAClass, true);
+        AssertExtracted(testSimple, false);
+        AssertExtracted(testWithParent, false);
+    }
+
+    @Test
+    public void testNatives() throws Exception {
+        Path nativeTestDir = jckDir.resolve("tests").resolve("api").resolve("api_pkg").resolve("testNative");
+        Files.createDirectories(nativeTestDir);
+        Path nativeSrc = nativeTestDir.resolve("testNative.c");
+        Files.write(nativeSrc, new byte[0]);
+        Path shareLibDir = jckDir.resolve("src").resolve("share").resolve("lib").resolve("jni");
+        Files.createDirectories(shareLibDir);
+        Path shareLibSrc = shareLibDir.resolve("jckjni.c");
+        Files.write(shareLibSrc, new byte[0]);
+
+        runExtractor("api/api_pkg/testNative", "--io-threads", "3");
+        AssertExtracted(nativeSrc, true);
+        AssertExtracted(shareLibSrc, true);
+        AssertExtracted(directA, false);
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        Path cacheDir = tmpDir.resolve("cache");
+        runExtractor("api/api_pkg/testDirecLib", "--cache-dir", cacheDir.toString());
+        AssertExtracted(testDirectLib, true);
+        AssertExtracted(directA, true);
+        List<Path> entries = new ArrayList<Path>();
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(cacheDir, "*.deps")) {
+            for (Path entry : dirStream) {
+                entries.add(entry);
+            }
+        }
+        Assert.assertEquals(2, entries.size());
+
+        /* modify cached entry of the test, to check it is used */
+        addCachedDep(cacheDir, "testDirecLib", linkedByHtml);
+        FileUtil.recursiveDelete(outputDir);
+        Files.createDirectories(outputDir);
+        runExtractor("api/api_pkg/testDirecLib", "--cache-dir", cacheDir.toString());
+        AssertExtracted(testDirectLib, true);
+        AssertExtracted(directA, true);
+        AssertExtracted(linkedByHtml, true);
+
+        /* modified test is resolved again */
+        Files.write(testDirectLib.resolveSibling("other.txt"), new byte[0]);
+        FileUtil.recursiveDelete(outputDir);
+        Files.createDirectories(outputDir);
+        runExtractor("api/api_pkg/testDirecLib", "--cache-dir", cacheDir.toString());
+        AssertExtracted(testDirectLib, true);
+        AssertExtracted(directA, true);
+        AssertExtracted(linkedByHtml, false);
+
+        /* entry is not used, when dependency from jck sources changed */
+        addCachedDep(cacheDir, "testDirecLib", linkedByHtml);
+        Files.setLastModifiedTime(directA, FileTime.fromMillis(Files.getLastModifiedTime(directA).toMillis() - 10000));
+        FileUtil.recursiveDelete(outputDir);
+        Files.createDirectories(outputDir);
+        runExtractor("api/api_pkg/testDirecLib", "--cache-dir", cacheDir.toString());
+        AssertExtracted(testDirectLib, true);
+        AssertExtracted(directA, true);
+        AssertExtracted(linkedByHtml, false);
+    }
+
+    private void addCachedDep(Path cacheDir, String testName, Path dep) throws IOException {
+        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(cacheDir, "*.deps")) {
+            for (Path entry : dirStream) {
+                if (Files.readAllLines(entry, Charset.forName("UTF-8")).toString().contains(testName)) {
+                    List<String> lines = new ArrayList<String>();
+                    lines.add("file test-dir " + jckDir.relativize(dep));
+                    Files.write(entry, lines, Charset.forName("UTF-8"), StandardOpenOption.APPEND);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPlan() throws Exception {
+        String json = runExtractorOutput("--jck-dir", jckDir.toString(),
+                "--test", "api/api_pkg/testDirecLib",
+                "--test", "api/api_pkg/htmlTestParent/testHtml", "--plan");
+        Assert.assertTrue(json, json.contains("\"fileCount\": "));
+        Assert.assertTrue(json, json.contains("\"natives\": false"));
+        Assert.assertTrue(json, json.contains("{\"path\": \"" + jckDir.relativize(testDirectLib) + "\", \"size\": " + Files.size(testDirectLib) + ", \"origin\": \"test-dir\"}"));
+        Assert.assertTrue(json, json.contains("{\"path\": \"" + jckDir.relativize(directA) + "\", \"size\": " + Files.size(directA) + ", \"origin\": \"javac\"}"));
+        Assert.assertTrue(json, json.contains("{\"path\": \"" + jckDir.relativize(linkedByHtml) + "\", \"size\": " + Files.size(linkedByHtml) + ", \"origin\": \"html\"}"));
+        Assert.assertFalse(json, json.contains(jckDir.relativize(jckAClass).toString()));
+        /* nothing is written in plan mode */
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(outputDir)) {
+            Assert.assertFalse(ds.iterator().hasNext());
+        }
+    }
+
+    @Test
+    public void testReverseIndex() throws Exception {
+        Path index = tmpDir.resolve("deps.idx");
+        runExtractorOutput("--jck-dir", jckDir.toString(), "--test", "api/api_pkg/test*Lib", "--build-index", index.toString());
+        Assert.assertTrue(Files.isRegularFile(index));
+        String affected = runExtractorOutput("--index", index.toString(), "--affected-by", jckDir.relativize(directA).toString());
+        Assert.assertEquals("api/api_pkg/testDirecLib\n", affected);
+        affected = runExtractorOutput("--index", index.toString(), "--jck-dir", jckDir.toString(),
+                "--affected-by", directA.toString(), jckDir.relativize(jckAClass).toString());
+        Assert.assertEquals("api/api_pkg/testDirecLib\napi/api_pkg/testJckLib\n", affected);
+        affected = runExtractorOutput("--index", index.toString(), "--affected-by", jckDir.relativize(testSimple).toString());
+        Assert.assertEquals("", affected);
+    }
+
+    @Test
+    public void testSlice() throws Exception {
+        /* lib class referencing other lib class only from unused method */
+        Path sliceUtil = directA.resolveSibling("SliceUtil.java");
+        List<String> lines = new ArrayList<String>();
+        lines.add("package direct.pkg;");
+        lines.add("");
+        lines.add("public class SliceUtil {");
+        lines.add("    public static int used() { return 1; }");
+        lines.add("    public static jck.pkg.JckA unused() { return null; }");
+        lines.add("}");
+        Files.write(sliceUtil, lines, Charset.defaultCharset());
+        lines.clear();
+        Path testSliceDir = jckDir.resolve("tests").resolve("api").resolve("api_pkg").resolve("testSlice");
+        Files.createDirectories(testSliceDir);
+        Path testSlice = testSliceDir.resolve("TestSlice.java");
+        lines.add("package testspkg.api.pkg.testSlice;");
+        lines.add("");
+        lines.add("import direct.pkg.SliceUtil;");
+        lines.add("");
+        lines.add("public class TestSlice {");
+        lines.add("    int x = SliceUtil.used();");
+        lines.add("}");
+        Files.write(testSlice, lines, Charset.defaultCharset());
+        lines.clear();
+
+        String report = runExtractorOutput("--jck-dir", jckDir.toString(), "--test", "api/api_pkg/testSlice", "--slice");
+        Assert.assertEquals("api/api_pkg/testSlice: 2 of 3 source(s) needed\n"
+                + "  " + jckDir.relativize(sliceUtil) + "\n"
+                + "  " + jckDir.relativize(testSlice) + "\n", report);
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        Path batchFile = tmpDir.resolve("batch.txt");
+        List<String> lines = new ArrayList<String>();
+        lines.add("api/api_pkg/test*Lib");
+        lines.add("api/api_pkg/test2parent/test2");
+        Files.write(batchFile, lines, Charset.forName("UTF-8"));
+        Path cacheDir = tmpDir.resolve("cache");
+        for (int i = 0; i < 2; ++i) {
+            String[] args = new String[]{"--jck-dir", jckDir.toString(), "--output-dir", outputDir.toString(),
+                "--batch", batchFile.toString(), "--queue-size", "1", "--cache-dir", cacheDir.toString()};
+            TestExtractor.main(args);
+            Path directLibOutput = outputDir.resolve("api").resolve("api_pkg").resolve("testDirecLib");
+            Path test2Output = outputDir.resolve("api").resolve("api_pkg").resolve("test2parent").resolve("test2");
+            Assert.assertTrue(Files.exists(directLibOutput.resolve(jckDir.relativize(testDirectLib))));
+            Assert.assertTrue(Files.exists(directLibOutput.resolve(jckDir.relativize(directA))));
+            Assert.assertFalse(Files.exists(directLibOutput.resolve(jckDir.relativize(jckAClass))));
+            Assert.assertTrue(Files.exists(directLibOutput.resolve("Makefile")));
+            Assert.assertTrue(Files.exists(directLibOutput.resolve("sources.mk")));
+            String tryRun = new String(Files.readAllBytes(directLibOutput.resolve("tryRun.sh")), "UTF-8");
+            Assert.assertTrue(tryRun.contains("api/api_pkg/testDirecLib"));
+            Path jckLibOutput = outputDir.resolve("api").resolve("api_pkg").resolve("testJckLib");
+            Assert.assertTrue(Files.exists(jckLibOutput.resolve(jckDir.relativize(jckAClass))));
+            Assert.assertFalse(Files.exists(jckLibOutput.resolve(jckDir.relativize(directA))));
+            Assert.assertTrue(Files.exists(test2Output.resolve(jckDir.relativize(test2Parent))));
+            /* second run uses cached dependencies */
+            FileUtil.recursiveDelete(outputDir);
+            Files.createDirectories(outputDir);
+        }
+    }
+
+    @Test
+    public void testWorkers() throws Exception {
+        runExtractor("api/api_pkg/test*Lib", "--test", "api/api_pkg/testKshDep",
+                "--workers", "2", "--worker-recycle", "1", "--worker-heap", "256m");
+        AssertExtracted(testDirectLib, true);
+        AssertExtracted(testJckLib, true);
+        AssertExtracted(testTestLib, true);
+        AssertExtracted(directA, true);
+        AssertExtracted(jckAClass, true);
+        AssertExtracted(testsAClass, true);
+        AssertExtracted(testSimple, false);
+        String sourcesMk = new String(Files.readAllBytes(outputDir.resolve("sources.mk")), "UTF-8");
+        Assert.assertTrue(sourcesMk, sourcesMk.contains(jckDir.relativize(testDirectLib) + ".stamp: " + jckDir.relativize(directA)));
+    }
+
+    @Test
+    public void testWorkerFailure() throws Exception {
+        /* javac runs out of small heap of worker on huge source, so the
+           worker terminates while resolving this test */
+        Path crashDir = testDirectLib.getParent().resolveSibling("testCrash");
+        Files.createDirectories(crashDir);
+        StringBuilder sb = new StringBuilder();
+        sb.append("package testspkg.api.pkg.testCrash;\n");
+        sb.append("public class Crash {\n");
+        sb.append("    int[] data = {\n");
+        for (int i = 0; i < 1000000; ++i) {
+            sb.append(i).append(",\n");
+        }
+        sb.append("    };\n");
+        sb.append("}\n");
+        Files.write(crashDir.resolve("Crash.java"), sb.toString().getBytes("UTF-8"));
+        /* line break in name of source is passed to worker escaped */
+        Path lineBreakDir = testDirectLib.getParent().resolveSibling("testLine\nBreak");
+        Files.createDirectories(lineBreakDir);
+        Path lineBreakSrc = lineBreakDir.resolve("Line\nBreak.java");
+        List<String> lines = new ArrayList<String>();
+        lines.add("package testspkg.api.pkg.testLineBreak;");
+        lines.add("class LineBreak {");
+        lines.add("    direct.pkg.DirectA a;");
+        lines.add("}");
+        Files.write(lineBreakSrc, lines, Charset.forName("UTF-8"));
+        Path batchFile = tmpDir.resolve("batch.txt");
+        lines.clear();
+        lines.add("api/api_pkg/testCrash");
+        lines.add("api/api_pkg/test*Lib");
+        lines.add("api/api_pkg/testLine*Break");
+        Files.write(batchFile, lines, Charset.forName("UTF-8"));
+        String[] args = new String[]{"--jck-dir", jckDir.toString(), "--output-dir", outputDir.toString(),
+            "--batch", batchFile.toString(), "--workers", "1", "--worker-heap", "64m"};
+        PrintStream err = System.err;
+        ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(errBytes, true, "UTF-8"));
+        try {
+            TestExtractor.main(args);
+            Assert.fail("failed test should fail the run");
+        } catch (Exception e) {
+            /* expected */
+        } finally {
+            System.setErr(err);
+        }
+        String log = new String(errBytes.toByteArray(), "UTF-8");
+        Assert.assertTrue(log, log.contains("ERR: Failed tests:\n  api/api_pkg/testCrash: "));
+        /* other tests are extracted (by restarted worker) */
+        Path testsOutput = outputDir.resolve("api").resolve("api_pkg");
+        Assert.assertFalse(Files.exists(testsOutput.resolve("testCrash")));
+        Assert.assertTrue(Files.exists(testsOutput.resolve("testDirecLib").resolve(jckDir.relativize(directA))));
+        Assert.assertTrue(Files.exists(testsOutput.resolve("testJckLib").resolve(jckDir.relativize(jckAClass))));
+        Assert.assertTrue(Files.exists(testsOutput.resolve("testTestLib").resolve(jckDir.relativize(testsAClass))));
+        Path lineBreakOutput = testsOutput.resolve("testLine\nBreak");
+        Assert.assertTrue(Files.exists(lineBreakOutput.resolve(jckDir.relativize(lineBreakSrc))));
+        Assert.assertTrue(Files.exists(lineBreakOutput.resolve(jckDir.relativize(directA))));
+    }
+
+    @Test
+    public void testShards() throws Exception {
+        /* shards run as separate processes, as they would on different nodes */
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Path> shardDirs = new ArrayList<Path>();
+        List<Process> processes = new ArrayList<Process>();
+        for (int i = 1; i <= 2; ++i) {
+            Path shardDir = tmpDir.resolve("shard" + i);
+            Files.createDirectories(shardDir);
+            shardDirs.add(shardDir);
+            ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    TestExtractor.class.getName(), "--jck-dir", jckDir.toString(), "--output-dir", shardDir.toString(),
+                    "--test", "api/api_pkg/test*Lib", "--test", "api/api_pkg/testKshDep", "--shard", i + "/2");
+            pb.redirectErrorStream(true);
+            pb.redirectOutput(tmpDir.resolve("shard" + i + ".log").toFile());
+            processes.add(pb.start());
+        }
+        for (int i = 0; i < processes.size(); ++i) {
+            String log = tmpDir.resolve("shard" + (i + 1) + ".log").toString();
+            Assert.assertEquals(log, 0, processes.get(i).waitFor());
+        }
+        Set<String> shardTests = new HashSet<String>();
+        int testCount = 0;
+        for (Path shardDir : shardDirs) {
+            for (String line : Files.readAllLines(shardDir.resolve("extract-manifest.txt"), Charset.forName("UTF-8"))) {
+                if (line.startsWith("test ")) {
+                    shardTests.add(line.substring(5));
+                    ++testCount;
+                }
+            }
+            Assert.assertTrue(Files.exists(shardDir.resolve("extract-stats.txt")));
+        }
+        /* shards are disjoint and cover all tests */
+        Assert.assertEquals(4, testCount);
+        Assert.assertEquals(4, shardTests.size());
+        /* partitioning is deterministic */
+        Path shardDir = tmpDir.resolve("shard1-again");
+        Files.createDirectories(shardDir);
+        TestExtractor.main(new String[]{"--jck-dir", jckDir.toString(), "--output-dir", shardDir.toString(),
+            "--test", "api/api_pkg/test*Lib", "--test", "api/api_pkg/testKshDep", "--shard", "1/2"});
+        Assert.assertEquals(Files.readAllLines(shardDirs.get(0).resolve("extract-manifest.txt"), Charset.forName("UTF-8")),
+                Files.readAllLines(shardDir.resolve("extract-manifest.txt"), Charset.forName("UTF-8")));
+
+        TestExtractor.main(new String[]{"--output-dir", outputDir.toString(),
+            "--merge", shardDirs.get(0).toString(), shardDirs.get(1).toString()});
+        AssertExtracted(testDirectLib, true);
+        AssertExtracted(testJckLib, true);
+        AssertExtracted(testTestLib, true);
+        AssertExtracted(jckDir.resolve("tests/api/api_pkg/testKshDep/testKshDep.ksh"), true);
+        AssertExtracted(directA, true);
+        AssertExtracted(jckAClass, true);
+        AssertExtracted(testsAClass, true);
+        AssertExtracted(testSimple, false);
+        String sourcesMk = new String(Files.readAllBytes(outputDir.resolve("sources.mk")), "UTF-8");
+        Assert.assertTrue(sourcesMk, sourcesMk.contains(jckDir.relativize(testDirectLib) + ".stamp: " + jckDir.relativize(directA)));
+        Assert.assertTrue(sourcesMk, sourcesMk.contains(jckDir.relativize(testJckLib) + ".stamp: " + jckDir.relativize(jckAClass)));
+        Assert.assertTrue(Files.exists(outputDir.resolve("Makefile")));
+        String tryRun = new String(Files.readAllBytes(outputDir.resolve("tryRun.sh")), "UTF-8");
+        Assert.assertTrue(tryRun.contains("api/api_pkg/testDirecLib"));
+        Assert.assertTrue(tryRun.contains("api/api_pkg/testKshDep"));
+        List<String> stats = Files.readAllLines(outputDir.resolve("extract-stats.txt"), Charset.forName("UTF-8"));
+        Assert.assertTrue(stats.toString(), stats.contains("shards 2"));
+        Assert.assertTrue(stats.toString(), stats.contains("tests 4"));
+    }
+
+    @Test
+    public void testCopyEngine() throws Exception {
+        Path srcDir = tmpDir.resolve("copy-src");
+        Files.createDirectories(srcDir.resolve("a"));
+        Map<Path, Path> files = new HashMap<Path, Path>();
+        byte[] large = new byte[1024 * 1024 + 7];
+        for (int i = 0; i < large.length; ++i) {
+            large[i] = (byte) i;
+        }
+        for (int i = 0; i < 100; ++i) {
+            Path file = srcDir.resolve(i % 2 == 0 ? "a" : "").resolve("file" + i + ".txt");
+            Files.write(file, i == 0 ? large : ("content" + i).getBytes("UTF-8"));
+            Files.setLastModifiedTime(file, FileTime.fromMillis(1000000000000L + i * 1000L));
+            files.put(file, outputDir.resolve("b").resolve(srcDir.relativize(file).toString()));
+        }
+        ExecutorService executor = IoExecutors.newExecutor(2);
+        try {
+            CopyEngine.copyFiles(files, executor, 4);
+        } finally {
+            executor.shutdownNow();
+        }
+        for (Map.Entry<Path, Path> e : files.entrySet()) {
+            Assert.assertArrayEquals(Files.readAllBytes(e.getKey()), Files.readAllBytes(e.getValue()));
+            Assert.assertEquals(Files.getLastModifiedTime(e.getKey()), Files.getLastModifiedTime(e.getValue()));
+        }
+    }
+
+    @Test
+    public void testHistory() throws Exception {
+        Path historyFile = tmpDir.resolve("history.txt");
+        runExtractor("api/api_pkg/test*Lib", "--test", "api/api_pkg/testKshDep", "--history", historyFile.toString());
+        AssertExtracted(testDirectLib, true);
+        AssertExtracted(jckAClass, true);
+        List<String> lines = Files.readAllLines(historyFile, Charset.forName("UTF-8"));
+        Assert.assertEquals(lines.toString(), 5, lines.size());
+        Assert.assertTrue(lines.toString(), lines.get(1).startsWith("test ") && lines.get(1).endsWith(" api/api_pkg/testDirecLib"));
+
+        /* test with highest recorded cost is scheduled first */
+        List<String> modified = new ArrayList<String>();
+        for (String line : lines) {
+            modified.add(line.endsWith(" api/api_pkg/testTestLib") ? "test 100000 1 1 1 api/api_pkg/testTestLib" : line);
+        }
+        Files.write(historyFile, modified, Charset.forName("UTF-8"));
+        History history = History.load(historyFile, jckDir);
+        List<Path> testDirs = TestExtractor.findTestDirs(jckDir.resolve("tests"), "api/api_pkg/test*Lib");
+        Assert.assertEquals(3, testDirs.size());
+        ExecutorService executor = IoExecutors.newExecutor(2);
+        try {
+            Assert.assertEquals(testTestLib.getParent(), history.schedule(testDirs, executor).get(0));
+        } finally {
+            executor.shutdownNow();
+        }
+        /* merged session keeps order of args */
+        Path planHistoryFile = tmpDir.resolve("plan-history.txt");
+        Files.copy(historyFile, planHistoryFile);
+        String json = runExtractorOutput("--jck-dir", jckDir.toString(), "--test", "api/api_pkg/test*Lib",
+                "--history", planHistoryFile.toString(), "--plan");
+        Assert.assertTrue(json, json.contains("\"tests\": [\"tests/api/api_pkg/testDirecLib\", "));
+
+        /* history of tests is updated by next run */
+        FileUtil.recursiveDelete(outputDir);
+        Files.createDirectories(outputDir);
+        runExtractor("api/api_pkg/testTestLib", "--history", historyFile.toString());
+        AssertExtracted(testsAClass, true);
+        lines = Files.readAllLines(historyFile, Charset.forName("UTF-8"));
+        Assert.assertEquals(lines.toString(), 5, lines.size());
+        Assert.assertFalse(lines.toString(), lines.contains("test 100000 1 1 1 api/api_pkg/testTestLib"));
+    }
+
+    /* waits for file system events to be reported and applied */
+    private boolean waitForPackage(LiveJckIndex liveIndex, List<File> roots, String pkg, boolean present) throws Exception {
+        for (int i = 0; i < 300; ++i) {
+            liveIndex.sync();
+            if (liveIndex.createPackageIndex(roots).getRoots(pkg).isEmpty() != present) {
+                return true;
+            }
+            Thread.sleep(100);
+        }
+        return false;
+    }
+
+    @Test
+    public void testPackageIndex() throws Exception {
+        Path src = jckDir.resolve("src");
+        Path jckSrc = src.resolve("jck.something");
+        List<File> roots = TestExtractor.getJckSrcDirs(src);
+        Assert.assertTrue(roots.contains(jckSrc.toFile()));
+        ExecutorService executor = IoExecutors.newExecutor(2);
+        try {
+            PackageIndex index = new PackageIndex(roots, executor);
+            Assert.assertEquals(Collections.singletonList(src.toFile()), index.getRoots("direct.pkg"));
+            Assert.assertEquals(Collections.singletonList(jckSrc.toFile()), index.getRoots("jck.pkg"));
+            /* nested root is not part of src */
+            Assert.assertTrue(index.getRoots("jck.something.jck.pkg").isEmpty());
+            Assert.assertEquals(jckSrc.toFile(), index.getRoot(jckAClass));
+            Assert.assertEquals(src.toFile(), index.getRoot(directA));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLiveIndex() throws Exception {
+        ExecutorService executor = IoExecutors.newExecutor(2);
+        try (LiveJckIndex liveIndex = new LiveJckIndex(jckDir, executor)) {
+            List<File> roots = liveIndex.getJckSrcDirs();
+            Path srcTestsFixed = liveIndex.getSrcTestsFixed();
+            roots.add(srcTestsFixed.toFile());
+            Assert.assertTrue(liveIndex.createPackageIndex(roots).getRoots("direct.pkg").contains(jckDir.resolve("src").toFile()));
+            Assert.assertTrue(liveIndex.createPackageIndex(roots).getRoots("testspkg.api.pkg.testslib").contains(srcTestsFixed.toFile()));
+
+            Path newPkgDir = jckDir.resolve("src").resolve("newpkg");
+            Files.createDirectories(newPkgDir);
+            List<String> lines = new ArrayList<String>();
+            lines.add("package newpkg;");
+            lines.add("public class NewA {}");
+            Files.write(newPkgDir.resolve("NewA.java"), lines, Charset.defaultCharset());
+            lines.clear();
+            Path testsLibDir = testsAClass.getParent().resolveSibling("testslib2");
+            Files.createDirectories(testsLibDir);
+            Path testsBClass = testsLibDir.resolve("TestsB.java");
+            lines.add("package testspkg.api.pkg.testslib2;");
+            lines.add("public class TestsB {}");
+            Files.write(testsBClass, lines, Charset.defaultCharset());
+            lines.clear();
+            /* file of nested root belongs only to it */
+            Path jckPkg2Dir = jckAClass.getParent().resolveSibling("pkg2");
+            Files.createDirectories(jckPkg2Dir);
+            lines.add("package jck.pkg2;");
+            lines.add("public class JckB {}");
+            Files.write(jckPkg2Dir.resolve("JckB.java"), lines, Charset.defaultCharset());
+            Assert.assertTrue(waitForPackage(liveIndex, roots, "jck.pkg2", true));
+            Assert.assertTrue(liveIndex.createPackageIndex(roots).getRoots("jck.something.jck.pkg2").isEmpty());
+            Assert.assertTrue(waitForPackage(liveIndex, roots, "newpkg", true));
+            Assert.assertTrue(waitForPackage(liveIndex, roots, "testspkg.api.pkg.testslib2", true));
+            Path link = srcTestsFixed.resolve("testspkg").resolve("api").resolve("pkg").resolve("testslib2").resolve("TestsB.java");
+            Assert.assertEquals(testsBClass, Files.readSymbolicLink(link));
+
+            FileUtil.recursiveDelete(newPkgDir);
+            Files.delete(testsBClass);
+            Assert.assertTrue(waitForPackage(liveIndex, roots, "newpkg", false));
+            Assert.assertTrue(waitForPackage(liveIndex, roots, "testspkg.api.pkg.testslib2", false));
+            Assert.assertFalse(Files.exists(link, LinkOption.NOFOLLOW_LINKS));
+        } finally {
+            executor.shutdownNow();
+        }
+        runExtractor("api/api_pkg/testTestLib", "--watch");
+        AssertExtracted(testTestLib, true);
+        AssertExtracted(testsAClass, true);
+    }
+
+    @Test
+    public void testLiveIndexSession() throws Exception {
+        /* steps of batch session (--batch --watch): src is edited after
+           session copied index and resolved first test */
+        PathTable paths = new PathTable(jckDir.getFileSystem());
+        ExecutorService executor = IoExecutors.newExecutor(2);
+        try (LiveJckIndex liveIndex = new LiveJckIndex(jckDir, executor)) {
+            long version = liveIndex.getVersion();
+            List<File> roots = liveIndex.getJckSrcDirs();
+            PackageIndex index = liveIndex.createPackageIndex(roots);
+            try (DependenciesGetter getter = new DependenciesGetter(roots, paths, SourceCache.getShared(), index)) {
+                IntSet deps = new IntSet();
+                getter.getDependencies(deps, Collections.singletonList(testDirectLib.toFile()));
+                Assert.assertTrue(deps.contains(paths.intern(directA)));
+
+                Path newPkgDir = jckDir.resolve("src").resolve("newpkg");
+                Files.createDirectories(newPkgDir);
+                Path newA = newPkgDir.resolve("NewA.java");
+                List<String> lines = new ArrayList<String>();
+                lines.add("package newpkg;");
+                lines.add("public class NewA {}");
+                Files.write(newA, lines, Charset.defaultCharset());
+                lines.clear();
+                Path testNewLib = testDirectLib.getParent().resolveSibling("testNewLib").resolve("TestNewLib.java");
+                Files.createDirectories(testNewLib.getParent());
+                lines.add("package testspkg.api.pkg.testNewLib;");
+                lines.add("public class TestNewLib {");
+                lines.add("    newpkg.NewA a;");
+                lines.add("}");
+                Files.write(testNewLib, lines, Charset.defaultCharset());
+
+                LiveJckIndex.Update update = null;
+                for (int i = 0; i < 300; ++i) {
+                    update = liveIndex.sync(version);
+                    if (update.packages.contains("newpkg")) {
+                        break;
+                    }
+                    Thread.sleep(100);
+                }
+                Assert.assertFalse(update.rebuilt);
+                Assert.assertTrue(update.packages.contains("newpkg"));
+                Assert.assertTrue(index.getRoots("newpkg").isEmpty());
+                liveIndex.updatePackageIndex(index, update.packages);
+                getter.packagesChanged(update.packages);
+                Assert.assertEquals(Collections.singletonList(jckDir.resolve("src").toFile()), index.getRoots("newpkg"));
+                deps = new IntSet();
+                getter.getDependencies(deps, Collections.singletonList(testNewLib.toFile()));
+                Assert.assertTrue(deps.contains(paths.intern(newA)));
+                /* changes are reported once */
+                Assert.assertTrue(liveIndex.sync(update.version).packages.isEmpty());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSourceCache() throws Exception {
+        PathTable paths = new PathTable(jckDir.getFileSystem());
+        SourceCache sourceCache = new SourceCache(SourceCache.DEFAULT_MAX_CHARS);
+        List<File> srcPath = new ArrayList<File>();
+        srcPath.add(jckDir.resolve("src").toFile());
+        List<File> sources = new ArrayList<File>();
+        sources.add(testDirectLib.toFile());
+        ExecutorService executor = IoExecutors.newExecutor(2);
+        try (DependenciesGetter getter = new DependenciesGetter(srcPath, paths, sourceCache, executor)) {
+            for (int i = 0; i < 2; ++i) {
+                IntSet deps = new IntSet();
+                getter.getDependencies(deps, sources);
+                /* accesses are recorded also when content is cached */
+                Assert.assertTrue(deps.contains(paths.intern(directA)));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, sourceCache.getMisses());
+        Assert.assertEquals(1, sourceCache.getHits());
+    }
+
 }